@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The manifest of a delta package, it lists what the package contains and what should be removed when applying it.
+ * The paths are relative to the project, so without the root folder.
+ */
+@XmlRootElement(name = "delta")
+public class DeltaInformation {
+	// the names that were compared, e.g. r41.2-prd-RC2 and r41.2-prd-RC3
+	private String from, to;
+	// the commits they resolved to
+	private String fromCommit, toCommit;
+	private List<String> added, modified, deleted;
+	
+	public String getFrom() {
+		return from;
+	}
+	public void setFrom(String from) {
+		this.from = from;
+	}
+	public String getTo() {
+		return to;
+	}
+	public void setTo(String to) {
+		this.to = to;
+	}
+	public String getFromCommit() {
+		return fromCommit;
+	}
+	public void setFromCommit(String fromCommit) {
+		this.fromCommit = fromCommit;
+	}
+	public String getToCommit() {
+		return toCommit;
+	}
+	public void setToCommit(String toCommit) {
+		this.toCommit = toCommit;
+	}
+	public List<String> getAdded() {
+		if (added == null) {
+			added = new ArrayList<String>();
+		}
+		return added;
+	}
+	public void setAdded(List<String> added) {
+		this.added = added;
+	}
+	public List<String> getModified() {
+		if (modified == null) {
+			modified = new ArrayList<String>();
+		}
+		return modified;
+	}
+	public void setModified(List<String> modified) {
+		this.modified = modified;
+	}
+	public List<String> getDeleted() {
+		if (deleted == null) {
+			deleted = new ArrayList<String>();
+		}
+		return deleted;
+	}
+	public void setDeleted(List<String> deleted) {
+		this.deleted = deleted;
+	}
+}
@@ -0,0 +1,407 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanResolver;
+import nabu.misc.git.types.GitArtifactCacheStatistics;
+import nabu.misc.git.types.GitArtifactManifest;
+
+/**
+ * The zips are stored by the name of the release candidate they were built from (e.g. r1.0-dev-RC2.zip, or r1.0-dev-RC2-root.zip if the root folder is included).
+ * Release candidates can't share a zip: each has its own build.xml (tag, candidate number, build date) so even without other changes their content differs.
+ * 
+ * The cache is bounded in size and age, when it is full we evict the least recently (or least frequently) used zips.
+ * The most recent release candidates of each environment are never evicted. If an evicted zip is requested again it is rebuilt from the release candidate.
+ * Every zip has a manifest next to it with the paths, blob ids and hashes of its entries.
+ * The last access is kept in the modification time of the zip so it survives a restart, the access counts are only kept in memory.
+ * A zip that is being served is pinned, it is not evicted until it is released.
+ */
+public class GitArtifactCache {
+	
+	public interface ZipWriter {
+		// the manifest is optional
+		public GitArtifactManifest write(OutputStream output) throws IOException;
+	}
+	
+	public enum EvictionPolicy {
+		LRU, LFU
+	}
+	
+	private static Map<String, GitArtifactCache> caches = new ConcurrentHashMap<String, GitArtifactCache>();
+	
+	// configured in megabytes and days, 0 means no limit
+	private long maxSize = Long.parseLong(System.getProperty("git.zip.maxSize", "10240")) * 1024 * 1024;
+	private long maxAge = TimeUnit.DAYS.toMillis(Long.parseLong(System.getProperty("git.zip.maxAge", "90")));
+	private EvictionPolicy policy = EvictionPolicy.valueOf(System.getProperty("git.zip.policy", "LRU").toUpperCase());
+	// how many of the most recent release candidates per environment are never evicted
+	private int protectedCandidates = Integer.parseInt(System.getProperty("git.zip.protect", "2"));
+	// we don't update the access time for every hit
+	private static final long ACCESS_RESOLUTION = 60000;
+	
+	// e.g. r1.0-dev-RC2.zip or r1.0-dev-RC2-root.zip
+	private static final Pattern RELEASE_CANDIDATE = Pattern.compile("^(.*)-RC([0-9]+)(-root)?\\.zip$");
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private File folder;
+	private Map<String, AtomicLong> accesses = new ConcurrentHashMap<String, AtomicLong>();
+	// how many times each zip is being served right now, guarded by the cache itself
+	private Map<String, Integer> pins = new HashMap<String, Integer>();
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), evictedSize = new AtomicLong();
+	
+	// the cache keeps statistics so we want one per folder
+	public static GitArtifactCache getInstance(File folder) {
+		String key = GitUtils.getProjectKey(folder);
+		GitArtifactCache cache = caches.get(key);
+		if (cache == null) {
+			synchronized(caches) {
+				cache = caches.get(key);
+				if (cache == null) {
+					cache = new GitArtifactCache(folder);
+					caches.put(key, cache);
+				}
+			}
+		}
+		return cache;
+	}
+	
+	public static List<GitArtifactCacheStatistics> getAllStatistics() {
+		List<GitArtifactCacheStatistics> statistics = new ArrayList<GitArtifactCacheStatistics>();
+		for (GitArtifactCache cache : new TreeMap<String, GitArtifactCache>(caches).values()) {
+			statistics.add(cache.getStatistics());
+		}
+		return statistics;
+	}
+	
+	private GitArtifactCache(File folder) {
+		this.folder = folder;
+	}
+	
+	public File getFolder() {
+		return folder;
+	}
+	
+	// the zip for a release candidate (e.g. "r1.0-dev-RC2"), null if we don't have it
+	public File get(String name, boolean includeRoot) {
+		File file = find(name, includeRoot);
+		if (file == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+			accessed(file);
+		}
+		return file;
+	}
+	
+	// the same but it does not count as a hit or a miss
+	File find(String name, boolean includeRoot) {
+		File file = getFile(name, includeRoot);
+		return file.exists() ? file : null;
+	}
+	
+	// the zip for the release candidate, it is only written if we don't have it yet
+	public File put(String name, boolean includeRoot, ZipWriter writer) throws IOException {
+		File file = getFile(name, includeRoot);
+		if (!file.exists()) {
+			file.getParentFile().mkdirs();
+			// we write to a temporary file first, a concurrent reader should never see a partial zip
+			File temporary = File.createTempFile("nabu-zip-", ".tmp", file.getParentFile());
+			try {
+				GitArtifactManifest manifest;
+				try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+					manifest = writer.write(output);
+				}
+				// the manifest goes first, once the zip is there it should have one
+				if (manifest != null) {
+					writeManifest(getManifestFile(file), manifest);
+				}
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				temporary.delete();
+			}
+			logger.info("Created zip '" + file + "'");
+			accessed(file);
+			evict();
+		}
+		return file;
+	}
+	
+	// the manifest of the zip for the release candidate, null if we have none, reading it does not touch the zip
+	public GitArtifactManifest getManifest(String name, boolean includeRoot) {
+		return getManifest(getFile(name, includeRoot));
+	}
+	
+	// the manifest that was written alongside the zip, null if there is none (e.g. zips written before we had manifests)
+	public GitArtifactManifest getManifest(File zip) {
+		File file = getManifestFile(zip);
+		if (!file.exists()) {
+			return null;
+		}
+		try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+			return TypeUtils.getAsBean(getManifestBinding().unmarshal(input, new Window[0]), GitArtifactManifest.class);
+		}
+		catch (Exception e) {
+			logger.warn("Could not read manifest '" + file + "'", e);
+			return null;
+		}
+	}
+	
+	private void writeManifest(File file, GitArtifactManifest manifest) throws IOException {
+		File temporary = File.createTempFile("nabu-manifest-", ".tmp", file.getParentFile());
+		try {
+			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+				getManifestBinding().marshal(output, new BeanInstance<GitArtifactManifest>(manifest));
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			temporary.delete();
+		}
+	}
+	
+	private static XMLBinding getManifestBinding() {
+		return new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(GitArtifactManifest.class), Charset.forName("UTF-8"));
+	}
+	
+	// e.g. r1.0-dev-RC2-root.zip has r1.0-dev-RC2-root.manifest.xml
+	private static File getManifestFile(File zip) {
+		return new File(zip.getParentFile(), zip.getName().replaceAll("\\.zip$", "") + ".manifest.xml");
+	}
+	
+	private void accessed(File file) {
+		AtomicLong counter = accesses.get(file.getAbsolutePath());
+		if (counter == null) {
+			accesses.putIfAbsent(file.getAbsolutePath(), new AtomicLong());
+			counter = accesses.get(file.getAbsolutePath());
+		}
+		counter.incrementAndGet();
+		long now = System.currentTimeMillis();
+		if (now - file.lastModified() > ACCESS_RESOLUTION) {
+			file.setLastModified(now);
+		}
+	}
+	
+	// make sure the zip is not evicted until it is released, returns false if it is already gone
+	public synchronized boolean pin(File file) {
+		if (!file.exists()) {
+			return false;
+		}
+		Integer count = pins.get(file.getAbsolutePath());
+		pins.put(file.getAbsolutePath(), count == null ? 1 : count + 1);
+		return true;
+	}
+	
+	public synchronized void release(File file) {
+		Integer count = pins.get(file.getAbsolutePath());
+		if (count != null && count > 1) {
+			pins.put(file.getAbsolutePath(), count - 1);
+		}
+		else {
+			pins.remove(file.getAbsolutePath());
+		}
+	}
+	
+	// apply the age and size limits
+	public synchronized void evict() {
+		long now = System.currentTimeMillis();
+		Set<String> protectedFiles = getProtectedFiles();
+		List<File> candidates = new ArrayList<File>();
+		long size = 0;
+		for (File file : getArtifacts()) {
+			size += file.length();
+			if (!protectedFiles.contains(file.getAbsolutePath()) && !pins.containsKey(file.getAbsolutePath())) {
+				candidates.add(file);
+			}
+		}
+		// the ones we should evict first are at the front
+		Collections.sort(candidates, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				if (policy == EvictionPolicy.LFU) {
+					int comparison = Long.compare(getAccesses(o1), getAccesses(o2));
+					if (comparison != 0) {
+						return comparison;
+					}
+				}
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		});
+		for (File file : candidates) {
+			boolean expired = maxAge > 0 && now - file.lastModified() > maxAge;
+			boolean full = maxSize > 0 && size > maxSize;
+			if (expired || full) {
+				long length = file.length();
+				if (file.delete()) {
+					getManifestFile(file).delete();
+					size -= length;
+					accesses.remove(file.getAbsolutePath());
+					evictions.incrementAndGet();
+					evictedSize.addAndGet(length);
+					logger.info("Evicted zip '" + file + "' (" + (expired ? "expired" : "cache full") + ")");
+				}
+			}
+		}
+	}
+	
+	private long getAccesses(File file) {
+		AtomicLong counter = accesses.get(file.getAbsolutePath());
+		return counter == null ? 0 : counter.get();
+	}
+	
+	private List<File> getArtifacts() {
+		List<File> artifacts = new ArrayList<File>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && file.getName().endsWith(".zip")) {
+					artifacts.add(file);
+				}
+			}
+		}
+		return artifacts;
+	}
+	
+	// the paths of the zips of the most recent release candidates per environment
+	private Set<String> getProtectedFiles() {
+		Map<String, TreeMap<Integer, List<File>>> environments = new HashMap<String, TreeMap<Integer, List<File>>>();
+		for (File file : getArtifacts()) {
+			Matcher matcher = RELEASE_CANDIDATE.matcher(file.getName());
+			if (matcher.matches()) {
+				TreeMap<Integer, List<File>> candidates = environments.get(matcher.group(1));
+				if (candidates == null) {
+					candidates = new TreeMap<Integer, List<File>>();
+					environments.put(matcher.group(1), candidates);
+				}
+				// with and without the root folder
+				Integer candidate = Integer.parseInt(matcher.group(2));
+				if (!candidates.containsKey(candidate)) {
+					candidates.put(candidate, new ArrayList<File>());
+				}
+				candidates.get(candidate).add(file);
+			}
+		}
+		Set<String> protectedFiles = new HashSet<String>();
+		for (TreeMap<Integer, List<File>> candidates : environments.values()) {
+			int counter = 0;
+			for (List<File> files : candidates.descendingMap().values()) {
+				if (counter++ >= protectedCandidates) {
+					break;
+				}
+				for (File file : files) {
+					protectedFiles.add(file.getAbsolutePath());
+				}
+			}
+		}
+		return protectedFiles;
+	}
+	
+	public GitArtifactCacheStatistics getStatistics() {
+		GitArtifactCacheStatistics statistics = new GitArtifactCacheStatistics();
+		statistics.setFolder(folder.getAbsolutePath());
+		long size = 0;
+		List<File> artifacts = getArtifacts();
+		for (File file : artifacts) {
+			size += file.length();
+		}
+		statistics.setArtifacts(artifacts.size());
+		statistics.setSize(size);
+		statistics.setHits(hits.get());
+		statistics.setMisses(misses.get());
+		statistics.setEvictions(evictions.get());
+		statistics.setEvictedSize(evictedSize.get());
+		return statistics;
+	}
+	
+	private File getFile(String name, boolean includeRoot) {
+		return new File(folder, name + (includeRoot ? "-root" : "") + ".zip");
+	}
+	
+	public long getMaxSize() {
+		return maxSize;
+	}
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public EvictionPolicy getPolicy() {
+		return policy;
+	}
+	public void setPolicy(EvictionPolicy policy) {
+		this.policy = policy;
+	}
+
+	public int getProtectedCandidates() {
+		return protectedCandidates;
+	}
+	public void setProtectedCandidates(int protectedCandidates) {
+		this.protectedCandidates = protectedCandidates;
+	}
+	
+	// a file in the cache that is not temporary (it is a zip of a release candidate)
+	public boolean contains(File file) {
+		try {
+			return file.getCanonicalPath().startsWith(folder.getCanonicalPath() + File.separator);
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+}
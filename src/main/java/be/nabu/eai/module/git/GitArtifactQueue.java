@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nabu.misc.git.types.GitArtifactQueueStatistics;
+
+/**
+ * Writes the zips for the artifact cache in the background so creating a release candidate does not have to wait for the compression.
+ * There is at most one job per zip: if the same zip is requested again while it is queued or being written, you get the running job.
+ * Someone who needs the zip right now can wait for it, if nothing is queued for it yet it is written on the calling thread instead of waiting in line.
+ */
+public class GitArtifactQueue {
+	
+	private static volatile GitArtifactQueue instance;
+	
+	private int threads = Integer.parseInt(System.getProperty("git.zip.queueThreads", "2"));
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+	private ExecutorService executor;
+	private AtomicInteger queued = new AtomicInteger(), running = new AtomicInteger();
+	private AtomicLong submitted = new AtomicLong(), deduplicated = new AtomicLong(), completed = new AtomicLong(), failed = new AtomicLong();
+	private AtomicLong dequeued = new AtomicLong(), totalWait = new AtomicLong(), maxWait = new AtomicLong(), totalDuration = new AtomicLong();
+	
+	public static GitArtifactQueue getInstance() {
+		if (instance == null) {
+			synchronized(GitArtifactQueue.class) {
+				if (instance == null) {
+					instance = new GitArtifactQueue();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	private GitArtifactQueue() {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "git-prezip-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				// serving and building take precedence
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+	
+	private class Job extends FutureTask<File> {
+		private String key;
+		
+		public Job(String key, Callable<File> callable) {
+			super(callable);
+			this.key = key;
+		}
+		@Override
+		protected void done() {
+			jobs.remove(key, this);
+		}
+	}
+	
+	// queue the zip, the future returns the file once it is written
+	public Future<File> submit(GitArtifactCache cache, String name, boolean includeRoot, GitArtifactCache.ZipWriter writer) {
+		File existing = cache.find(name, includeRoot);
+		if (existing != null) {
+			return CompletableFuture.completedFuture(existing);
+		}
+		Job job = newJob(cache, name, includeRoot, writer, true);
+		Job current = jobs.putIfAbsent(job.key, job);
+		if (current != null) {
+			deduplicated.incrementAndGet();
+			return current;
+		}
+		submitted.incrementAndGet();
+		queued.incrementAndGet();
+		executor.execute(job);
+		return job;
+	}
+	
+	// get the zip, if it is queued or being written we wait for it, otherwise we write it ourselves
+	public File get(GitArtifactCache cache, String name, boolean includeRoot, GitArtifactCache.ZipWriter writer) throws IOException {
+		File existing = cache.find(name, includeRoot);
+		if (existing != null) {
+			return existing;
+		}
+		Job job = newJob(cache, name, includeRoot, writer, false);
+		Job current = jobs.putIfAbsent(job.key, job);
+		if (current == null) {
+			submitted.incrementAndGet();
+			job.run();
+			current = job;
+		}
+		else {
+			deduplicated.incrementAndGet();
+		}
+		try {
+			return current.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+	
+	private Job newJob(final GitArtifactCache cache, final String name, final boolean includeRoot, final GitArtifactCache.ZipWriter writer, final boolean queue) {
+		final String key = cache.getFolder().getAbsolutePath() + ":" + name + (includeRoot ? "-root" : "");
+		final long created = System.currentTimeMillis();
+		return new Job(key, new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				long started = System.currentTimeMillis();
+				if (queue) {
+					queued.decrementAndGet();
+					dequeued.incrementAndGet();
+					long wait = started - created;
+					totalWait.addAndGet(wait);
+					long max;
+					while (wait > (max = maxWait.get()) && !maxWait.compareAndSet(max, wait));
+				}
+				running.incrementAndGet();
+				try {
+					File file = cache.put(name, includeRoot, writer);
+					completed.incrementAndGet();
+					return file;
+				}
+				catch (Exception e) {
+					failed.incrementAndGet();
+					logger.error("Could not write zip for " + name, e);
+					throw e;
+				}
+				finally {
+					running.decrementAndGet();
+					totalDuration.addAndGet(System.currentTimeMillis() - started);
+				}
+			}
+		});
+	}
+	
+	public GitArtifactQueueStatistics getStatistics() {
+		GitArtifactQueueStatistics statistics = new GitArtifactQueueStatistics();
+		statistics.setQueued(queued.get());
+		statistics.setRunning(running.get());
+		statistics.setSubmitted(submitted.get());
+		statistics.setDeduplicated(deduplicated.get());
+		long finished = completed.get() + failed.get();
+		statistics.setCompleted(completed.get());
+		statistics.setFailed(failed.get());
+		// only queued jobs wait, the ones that are written on the calling thread start immediately
+		statistics.setAverageWait(dequeued.get() == 0 ? 0 : totalWait.get() / dequeued.get());
+		statistics.setMaxWait(maxWait.get());
+		statistics.setAverageDuration(finished == 0 ? 0 : totalDuration.get() / finished);
+		return statistics;
+	}
+}
@@ -0,0 +1,235 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clones a project into a build workspace.
+ * Like a regular clone, the branch that is checked out is the one the remote HEAD points to unless a branch is set explicitly.
+ * If an object store is set, it is updated first and the workspace only fetches what the store does not have.
+ * Cloning from a repository on the same machine skips the transport: the object files are hardlinked and the refs are written directly.
+ */
+public class GitCloner {
+	
+	private static boolean linkLocal = Boolean.parseBoolean(System.getProperty("git.clone.link", "true"));
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private String remote = "origin", branch;
+	private CredentialsProvider credentials;
+	private GitObjectStore objectStore;
+
+	public void clone(String uri, File target) throws GitAPIException, URISyntaxException, IOException {
+		long started = System.currentTimeMillis();
+		if (objectStore != null || getLocalGitFolder(uri) != null) {
+			cloneInto(uri, target, new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + remote + "/*"), new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"));
+		}
+		else if (branch != null) {
+			Git.cloneRepository().setURI(uri).setBranch(Constants.R_HEADS + branch).setCredentialsProvider(credentials).setDirectory(target).setRemote(remote).call().close();
+		}
+		else {
+			Git.cloneRepository().setURI(uri).setCredentialsProvider(credentials).setDirectory(target).setRemote(remote).call().close();
+		}
+		logger.info("Cloned '" + uri + "' into '" + target + "' in " + (System.currentTimeMillis() - started) + "ms");
+	}
+	
+	// the equivalent of a clone, but with our own refspecs and optionally borrowing objects from the store
+	private void cloneInto(String uri, File target, RefSpec...refSpecs) throws GitAPIException, URISyntaxException, IOException {
+		File source = getLocalGitFolder(uri);
+		if (objectStore != null) {
+			if (source != null) {
+				objectStore.update(source, refSpecs);
+			}
+			else {
+				objectStore.update(uri, credentials, refSpecs);
+			}
+		}
+		try (Git git = Git.init().setDirectory(target).call()) {
+			StoredConfig config = git.getRepository().getConfig();
+			RemoteConfig remoteConfig = new RemoteConfig(config, remote);
+			remoteConfig.addURI(new URIish(uri));
+			for (RefSpec refSpec : refSpecs) {
+				remoteConfig.addFetchRefSpec(refSpec);
+			}
+			remoteConfig.setTagOpt(TagOpt.AUTO_FOLLOW);
+			remoteConfig.update(config);
+			config.save();
+		}
+		// the alternates are picked up when the repository is opened, so we link before we start using it
+		File gitFolder = new File(target, Constants.DOT_GIT);
+		if (objectStore != null) {
+			objectStore.link(gitFolder);
+		}
+		// we take the refs before we take the objects, any object they point to is guaranteed to be there
+		Map<String, ObjectId> refs = null;
+		String checkout = branch;
+		if (source != null && checkout == null) {
+			try (Repository repository = new FileRepositoryBuilder().setGitDir(source).build()) {
+				checkout = getDefaultBranch(repository.exactRef(Constants.HEAD), repository.getRefDatabase().getRefsByPrefix(Constants.R_HEADS));
+			}
+		}
+		if (source != null && objectStore == null) {
+			try (Repository repository = new FileRepositoryBuilder().setGitDir(source).build()) {
+				refs = GitUtils.getRefs(repository, refSpecs);
+			}
+			long started = System.currentTimeMillis();
+			int copied = GitUtils.linkObjects(new File(source, "objects"), new File(gitFolder, "objects"));
+			logger.info("Linked objects from '" + source + "' in " + (System.currentTimeMillis() - started) + "ms, " + copied + " files had to be copied");
+			// if the source borrows objects itself, so do we
+			File alternates = new File(source, "objects/info/alternates");
+			if (alternates.exists()) {
+				Files.copy(alternates.toPath(), new File(gitFolder, "objects/info/alternates").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (!GitUtils.isConnected(gitFolder, refs)) {
+				logger.warn("The objects of '" + source + "' changed while we linked them, fetching instead");
+				refs = null;
+			}
+		}
+		// with an up to date object store, the objects are already there
+		else if (source != null) {
+			try (Repository repository = new FileRepositoryBuilder().setGitDir(objectStore.getFolder()).setBare().build()) {
+				refs = GitUtils.getRefs(repository, toStoreRefSpecs(refSpecs));
+			}
+			// we fetched into the store under the original names, the workspace wants them under the tracking names
+			Map<String, ObjectId> mapped = new LinkedHashMap<String, ObjectId>();
+			for (Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+				for (RefSpec refSpec : refSpecs) {
+					if (refSpec.matchSource(ref.getKey())) {
+						mapped.put(refSpec.expandFromSource(ref.getKey()).getDestination(), ref.getValue());
+						break;
+					}
+				}
+			}
+			refs = mapped;
+		}
+		try (Git git = Git.open(target)) {
+			Ref main = null;
+			if (refs != null) {
+				GitUtils.setRefs(git.getRepository(), refs);
+				if (checkout != null) {
+					main = git.getRepository().exactRef(Constants.R_REMOTES + remote + "/" + checkout);
+				}
+			}
+			else {
+				FetchResult result = git.fetch().setRemote(remote).setCredentialsProvider(credentials).call();
+				if (checkout == null) {
+					checkout = getDefaultBranch(result.getAdvertisedRef(Constants.HEAD), result.getAdvertisedRefs());
+				}
+				if (checkout != null) {
+					main = result.getAdvertisedRef(Constants.R_HEADS + checkout);
+				}
+			}
+			if (main == null) {
+				throw new IllegalStateException(checkout == null ? "The remote '" + uri + "' has no HEAD to check out" : "The remote '" + uri + "' does not have a branch '" + checkout + "'");
+			}
+			git.checkout().setCreateBranch(true).setName(checkout)
+				.setStartPoint(Constants.R_REMOTES + remote + "/" + checkout)
+				.setUpstreamMode(SetupUpstreamMode.TRACK)
+				.call();
+		}
+	}
+	
+	// the branch the remote HEAD points to, if the protocol did not tell us the target we take a branch on the same commit, like a regular clone does
+	static String getDefaultBranch(Ref head, Collection<Ref> refs) {
+		if (head == null || head.getObjectId() == null) {
+			return null;
+		}
+		if (head.isSymbolic()) {
+			return Repository.shortenRefName(head.getTarget().getName());
+		}
+		Ref found = null;
+		for (Ref ref : refs) {
+			if (ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId())) {
+				if (ref.getName().equals(Constants.R_HEADS + Constants.MASTER)) {
+					return Constants.MASTER;
+				}
+				else if (found == null || ref.getName().compareTo(found.getName()) < 0) {
+					found = ref;
+				}
+			}
+		}
+		return found == null ? null : Repository.shortenRefName(found.getName());
+	}
+	
+	// the store keeps the refs under their original name
+	static RefSpec[] toStoreRefSpecs(RefSpec...refSpecs) {
+		RefSpec[] result = new RefSpec[refSpecs.length];
+		for (int i = 0; i < refSpecs.length; i++) {
+			result[i] = new RefSpec("+" + refSpecs[i].getSource() + ":" + refSpecs[i].getSource());
+		}
+		return result;
+	}
+	
+	private File getLocalGitFolder(String uri) {
+		return linkLocal ? GitUtils.getLocalGitFolder(uri) : null;
+	}
+	
+	public String getRemote() {
+		return remote;
+	}
+	public void setRemote(String remote) {
+		this.remote = remote;
+	}
+
+	public String getBranch() {
+		return branch;
+	}
+	public void setBranch(String branch) {
+		this.branch = branch;
+	}
+
+	public CredentialsProvider getCredentials() {
+		return credentials;
+	}
+	public void setCredentials(CredentialsProvider credentials) {
+		this.credentials = credentials;
+	}
+
+	public GitObjectStore getObjectStore() {
+		return objectStore;
+	}
+	public void setObjectStore(GitObjectStore objectStore) {
+		this.objectStore = objectStore;
+	}
+}
@@ -24,6 +24,13 @@ import java.util.TreeSet;
 import javax.xml.bind.annotation.XmlTransient;
 
 public class GitEnvironment extends GitReference {
+	private static final Comparator<GitReleaseCandidate> CANDIDATE_COMPARATOR = new Comparator<GitReleaseCandidate>() {
+		@Override
+		public int compare(GitReleaseCandidate refA, GitReleaseCandidate refB) {
+			return Integer.compare(refA.getCandidate(), refB.getCandidate());
+		}
+	};
+	
 	private String name;
 	private SortedSet<GitReleaseCandidate> releaseCandidates;
 	private GitPatch patch;
@@ -50,14 +57,7 @@ public class GitEnvironment extends GitReference {
 		if (releaseCandidates == null) {
 			synchronized(this) {
 				if (releaseCandidates == null) {
-					releaseCandidates = new TreeSet<GitReleaseCandidate>(new Comparator<GitReleaseCandidate>() {
-						@Override
-						public int compare(GitReleaseCandidate refA, GitReleaseCandidate refB) {
-							int rcA = Integer.parseInt(refA.getReference().replaceAll(".*-RC([0-9]+)$", "$1"));
-							int rcB = Integer.parseInt(refB.getReference().replaceAll(".*-RC([0-9]+)$", "$1"));
-							return rcA - rcB;
-						}
-					});
+					releaseCandidates = new TreeSet<GitReleaseCandidate>(CANDIDATE_COMPARATOR);
 				}
 			}
 		}
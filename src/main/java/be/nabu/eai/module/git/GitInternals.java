@@ -0,0 +1,261 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+
+package be.nabu.eai.module.git;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdSet;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.ReflogEntry;
+import org.eclipse.jgit.lib.ReflogReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+
+/**
+ * Everything that needs the jgit internals (org.eclipse.jgit.internal), these are not part of the public api and can change with any jgit release.
+ * The public api has no way to pack only the refs or to repack a workspace without copying in the objects it borrows from a shared store, so that is done here.
+ * GitInternalsTest repacks a linked workspace to catch a jgit upgrade that breaks this.
+ */
+class GitInternals {
+	
+	// the message jgit uses when the remote does not advertise atomic push
+	static String getAtomicPushNotSupported() {
+		return JGitText.get().atomicPushNotSupported;
+	}
+	
+	// pack all the loose refs without touching the objects
+	static void packRefs(Repository repository) throws IOException {
+		List<String> names = new ArrayList<String>();
+		for (Ref ref : repository.getRefDatabase().getRefs()) {
+			if (!ref.isSymbolic()) {
+				names.add(ref.getName());
+			}
+		}
+		((RefDirectory) repository.getRefDatabase()).pack(names);
+	}
+	
+	// write everything reachable that is not in the shared store into a single local pack, then drop the old packs and the loose objects it makes redundant
+	static void repackLocal(Repository repository, long expired) throws IOException {
+		File objects = new File(repository.getDirectory(), Constants.OBJECTS);
+		BorrowedObjects borrowed = new BorrowedObjects(objects);
+		File packFolder = new File(objects, "pack");
+		packFolder.mkdirs();
+		File[] oldPacks = packFolder.listFiles();
+		List<File> looseObjects = new ArrayList<File>();
+		List<File> redundantPacks = new ArrayList<File>();
+		try (ObjectReader reader = repository.newObjectReader(); PackWriter writer = new PackWriter(new PackConfig(repository), reader)) {
+			writer.excludeObjects(borrowed);
+			writer.preparePack(NullProgressMonitor.INSTANCE, getWants(repository, reader), PackWriter.NONE);
+			if (writer.getObjectCount() == 0) {
+				return;
+			}
+			File packTemp = File.createTempFile("maintenance_", ".pack_tmp", packFolder);
+			File indexTemp = File.createTempFile("maintenance_", ".idx_tmp", packFolder);
+			String name;
+			try {
+				try (OutputStream output = new BufferedOutputStream(new FileOutputStream(packTemp))) {
+					writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, output);
+				}
+				try (OutputStream output = new BufferedOutputStream(new FileOutputStream(indexTemp))) {
+					writer.writeIndex(output);
+				}
+				name = "pack-" + writer.computeName().name();
+				File pack = new File(packFolder, name + ".pack");
+				// if nothing changed since the last time, we end up with the same pack
+				if (pack.exists()) {
+					return;
+				}
+				// the pack must be there before its index makes it visible
+				Files.move(packTemp.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				Files.move(indexTemp.toPath(), new File(packFolder, name + ".idx").toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				packTemp.delete();
+				indexTemp.delete();
+			}
+			// an old pack can go if everything in it is in the new pack or in the store
+			// anything else in it is unreachable, we only drop that once the pack is old enough
+			if (oldPacks != null) {
+				for (File oldPack : oldPacks) {
+					String oldName = oldPack.getName().replaceAll("\\.[^.]+$", "");
+					if (oldPack.getName().startsWith("pack-") && oldPack.getName().endsWith(".idx") && !oldName.equals(name) && !new File(packFolder, oldName + ".keep").exists()) {
+						File oldPackFile = new File(packFolder, oldName + ".pack");
+						if (oldPackFile.lastModified() < expired || isRedundant(PackIndex.open(oldPack), writer, borrowed)) {
+							for (File file : oldPacks) {
+								if (file.getName().startsWith(oldName + ".")) {
+									redundantPacks.add(file);
+								}
+							}
+						}
+					}
+				}
+			}
+			// the same for loose objects
+			File[] fanout = objects.listFiles();
+			if (fanout != null) {
+				for (File folder : fanout) {
+					if (folder.isDirectory() && folder.getName().length() == 2) {
+						File[] files = folder.listFiles();
+						if (files != null) {
+							for (File file : files) {
+								if (ObjectId.isId(folder.getName() + file.getName())) {
+									ObjectId id = ObjectId.fromString(folder.getName() + file.getName());
+									if (writer.willInclude(id) || borrowed.contains(id) || file.lastModified() < expired) {
+										looseObjects.add(file);
+									}
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		// the index goes first so the pack is no longer visible when we remove it
+		Collections.sort(redundantPacks, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return Boolean.compare(!first.getName().endsWith(".idx"), !second.getName().endsWith(".idx"));
+			}
+		});
+		for (File redundantPack : redundantPacks) {
+			redundantPack.delete();
+		}
+		for (File looseObject : looseObjects) {
+			looseObject.delete();
+		}
+	}
+	
+	// everything the workspace can still get to: the refs (including HEAD), their reflogs and the index
+	private static Set<ObjectId> getWants(Repository repository, ObjectReader reader) throws IOException {
+		Set<ObjectId> wants = new HashSet<ObjectId>();
+		List<Ref> refs = new ArrayList<Ref>(repository.getRefDatabase().getRefs());
+		Ref head = repository.exactRef(Constants.HEAD);
+		if (head != null) {
+			refs.add(head);
+		}
+		for (Ref ref : refs) {
+			if (ref.getObjectId() != null) {
+				wants.add(ref.getObjectId());
+			}
+			ReflogReader reflog = repository.getReflogReader(ref.getName());
+			if (reflog != null) {
+				for (ReflogEntry entry : reflog.getReverseEntries()) {
+					wants.add(entry.getOldId());
+					wants.add(entry.getNewId());
+				}
+			}
+		}
+		if (!repository.isBare()) {
+			DirCache dirCache = repository.readDirCache();
+			for (int i = 0; i < dirCache.getEntryCount(); i++) {
+				wants.add(dirCache.getEntry(i).getObjectId());
+			}
+		}
+		// a reflog can point to objects that are long gone (or to nothing at all)
+		Iterator<ObjectId> iterator = wants.iterator();
+		while (iterator.hasNext()) {
+			ObjectId id = iterator.next();
+			if (id.equals(ObjectId.zeroId()) || !reader.has(id)) {
+				iterator.remove();
+			}
+		}
+		return wants;
+	}
+	
+	private static boolean isRedundant(PackIndex index, PackWriter writer, ObjectIdSet borrowed) throws IOException {
+		for (PackIndex.MutableEntry entry : index) {
+			if (!writer.willInclude(entry.toObjectId()) && !borrowed.contains(entry.toObjectId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// the objects in the stores we borrow from, both packed and loose
+	private static class BorrowedObjects implements ObjectIdSet {
+		private List<PackIndex> indexes = new ArrayList<PackIndex>();
+		private List<File> folders = new ArrayList<File>();
+		
+		private BorrowedObjects(File objects) throws IOException {
+			File alternates = new File(objects, "info/alternates");
+			if (alternates.exists()) {
+				for (String line : Files.readAllLines(alternates.toPath(), Charset.forName("UTF-8"))) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					File alternate = new File(line);
+					if (!alternate.isAbsolute()) {
+						alternate = new File(objects, line);
+					}
+					folders.add(alternate);
+					File[] files = new File(alternate, "pack").listFiles();
+					if (files != null) {
+						for (File file : files) {
+							if (file.getName().endsWith(".idx")) {
+								indexes.add(PackIndex.open(file));
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		@Override
+		public boolean contains(AnyObjectId id) {
+			for (PackIndex index : indexes) {
+				if (index.hasObject(id)) {
+					return true;
+				}
+			}
+			String name = id.name();
+			for (File folder : folders) {
+				if (new File(folder, name.substring(0, 2) + "/" + name.substring(2)).exists()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A held project lock, close it to release the lock.
+ */
+public class GitLock implements AutoCloseable {
+	
+	private GitLockManager manager;
+	private GitLockManager.ProjectLock project;
+	private Lock lock;
+	private long acquired;
+	private boolean closed;
+	
+	GitLock(GitLockManager manager, GitLockManager.ProjectLock project, Lock lock, long acquired) {
+		this.manager = manager;
+		this.project = project;
+		this.lock = lock;
+		this.acquired = acquired;
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			lock.unlock();
+			project.held(System.nanoTime() - acquired);
+			manager.dereference(project);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nabu.misc.git.types.GitLockStatistics;
+
+/**
+ * Exclusive locks per project folder, shared by all calls regardless of which GitRepository instance they use.
+ * Anything that checks out a branch (or otherwise changes the working directory or the refs) needs the lock.
+ * Reads (versions, zips, manifests, deltas, release notes) are served from the object database and the read-only snapshot of the versions, so they never take a lock.
+ * The locks are fair so a long queue of builds is served in order, and they are reentrant.
+ * The locks live in a concurrent map, a project only contends with other calls for the same project.
+ * A lock that nobody holds or waits for is removed, we only remember the statistics of the most recently used ones.
+ */
+public class GitLockManager {
+	
+	private static volatile GitLockManager instance;
+	
+	// if we wait longer than this (in ms) for a lock, we log it
+	private long slowWait = Long.parseLong(System.getProperty("git.lock.slow", "5000"));
+	// how many unused locks we keep around for their statistics
+	private int history = Integer.parseInt(System.getProperty("git.lock.history", "100"));
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	// the locks that are held or waited for, the user count of a lock is only changed while computing its entry
+	private ConcurrentHashMap<String, ProjectLock> locks = new ConcurrentHashMap<String, ProjectLock>();
+	// the most recently released locks, in access order, guarded by itself
+	// this is only touched when a project gets its first user or loses its last one
+	private Map<String, ProjectLock> unused = new LinkedHashMap<String, ProjectLock>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ProjectLock> eldest) {
+			return size() > history;
+		}
+	};
+	
+	public static GitLockManager getInstance() {
+		if (instance == null) {
+			synchronized(GitLockManager.class) {
+				if (instance == null) {
+					instance = new GitLockManager();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	static class ProjectLock {
+		private String project;
+		private ReentrantLock lock = new ReentrantLock(true);
+		// the threads that hold or wait for the lock
+		private int users;
+		private long locks, waitTime, maxWaitTime, holdTime, maxHoldTime;
+		
+		private ProjectLock(String project) {
+			this.project = project;
+		}
+		synchronized void waited(long nanos) {
+			locks++;
+			waitTime += nanos;
+			maxWaitTime = Math.max(maxWaitTime, nanos);
+		}
+		synchronized void held(long nanos) {
+			holdTime += nanos;
+			maxHoldTime = Math.max(maxHoldTime, nanos);
+		}
+		synchronized GitLockStatistics getStatistics() {
+			GitLockStatistics statistics = new GitLockStatistics();
+			statistics.setProject(project);
+			statistics.setLocks(locks);
+			statistics.setWaitTime(TimeUnit.NANOSECONDS.toMillis(waitTime));
+			statistics.setMaxWaitTime(TimeUnit.NANOSECONDS.toMillis(maxWaitTime));
+			statistics.setHoldTime(TimeUnit.NANOSECONDS.toMillis(holdTime));
+			statistics.setMaxHoldTime(TimeUnit.NANOSECONDS.toMillis(maxHoldTime));
+			statistics.setQueued(lock.getQueueLength());
+			statistics.setLocked(lock.isLocked());
+			return statistics;
+		}
+	}
+	
+	public GitLock lock(File folder) {
+		return lock(folder, -1);
+	}
+	
+	// returns null if we could not get the lock within the timeout (in ms)
+	public GitLock lock(File folder, long timeout) {
+		String key = GitUtils.getProjectKey(folder);
+		ProjectLock project = reference(key);
+		long started = System.nanoTime();
+		try {
+			if (timeout < 0) {
+				project.lock.lock();
+			}
+			else if (!project.lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+				dereference(project);
+				return null;
+			}
+		}
+		catch (InterruptedException e) {
+			dereference(project);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (RuntimeException e) {
+			dereference(project);
+			throw e;
+		}
+		long acquired = System.nanoTime();
+		project.waited(acquired - started);
+		long waited = TimeUnit.NANOSECONDS.toMillis(acquired - started);
+		if (waited > slowWait) {
+			logger.warn("Waited " + waited + "ms for the lock on: " + key);
+		}
+		return new GitLock(this, project, project.lock, acquired);
+	}
+	
+	private ProjectLock reference(String key) {
+		return locks.compute(key, new BiFunction<String, ProjectLock, ProjectLock>() {
+			@Override
+			public ProjectLock apply(String key, ProjectLock project) {
+				if (project == null) {
+					synchronized(unused) {
+						project = unused.remove(key);
+					}
+					if (project == null) {
+						project = new ProjectLock(key);
+					}
+				}
+				project.users++;
+				return project;
+			}
+		});
+	}
+	
+	void dereference(ProjectLock project) {
+		locks.computeIfPresent(project.project, new BiFunction<String, ProjectLock, ProjectLock>() {
+			@Override
+			public ProjectLock apply(String key, ProjectLock current) {
+				if (--current.users <= 0) {
+					synchronized(unused) {
+						unused.put(key, current);
+					}
+					return null;
+				}
+				return current;
+			}
+		});
+	}
+	
+	public List<GitLockStatistics> getStatistics() {
+		// sorted by project
+		Map<String, ProjectLock> sorted = new TreeMap<String, ProjectLock>();
+		synchronized(unused) {
+			sorted.putAll(unused);
+		}
+		sorted.putAll(locks);
+		List<GitLockStatistics> statistics = new ArrayList<GitLockStatistics>();
+		for (ProjectLock project : sorted.values()) {
+			statistics.add(project.getStatistics());
+		}
+		return statistics;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.GarbageCollectCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nabu.misc.git.types.GitMaintenanceStatistics;
+
+/**
+ * Keeps the repositories in the builds folders in shape: every merge, merge result and RC tag adds loose objects and refs and nothing else cleans them up.
+ * On a schedule we check each repository against the thresholds and repack, pack the refs and prune where needed, always under the project lock.
+ * 
+ * Workspaces that borrow objects from a shared object store are repacked locally: the jgit gc would copy all the borrowed objects back into the workspace.
+ * Such a pack is not self contained so it has no bitmap index, the bitmaps live in the store.
+ * The jgit prune does not take the borrowed objects into account either, so we only remove what we know is packed, borrowed or unreachable for long enough.
+ */
+public class GitMaintenance {
+	
+	private static volatile GitMaintenance instance;
+	
+	// in minutes, 0 disables the scheduled runs
+	private long interval = Long.parseLong(System.getProperty("git.maintenance.interval", "60"));
+	// the thresholds that trigger maintenance
+	private long looseObjects = Long.parseLong(System.getProperty("git.maintenance.loose", "1000"));
+	private int packs = Integer.parseInt(System.getProperty("git.maintenance.packs", "20"));
+	private int looseRefs = Integer.parseInt(System.getProperty("git.maintenance.refs", "250"));
+	// in minutes, how old unreachable objects in a linked workspace must be before we remove them, a running operation may not have referenced them yet
+	private long expire = Long.parseLong(System.getProperty("git.maintenance.expire", "" + TimeUnit.DAYS.toMinutes(14)));
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Set<File> roots = ConcurrentHashMap.newKeySet();
+	private Map<String, GitMaintenanceStatistics> statistics = new ConcurrentHashMap<String, GitMaintenanceStatistics>();
+	private ScheduledExecutorService scheduler;
+	private boolean scheduled;
+	
+	public static GitMaintenance getInstance() {
+		if (instance == null) {
+			synchronized(GitMaintenance.class) {
+				if (instance == null) {
+					instance = new GitMaintenance();
+				}
+			}
+		}
+		return instance;
+	}
+	
+	// register a builds folder, the first registration starts the schedule
+	public void register(File builds) {
+		if (roots.add(builds) && interval > 0) {
+			synchronized(this) {
+				if (!scheduled) {
+					scheduled = true;
+					getScheduler().scheduleWithFixedDelay(new Runnable() {
+						@Override
+						public void run() {
+							maintainAll();
+						}
+					}, interval, interval, TimeUnit.MINUTES);
+				}
+			}
+		}
+	}
+	
+	// run a small housekeeping task (in ms) on the maintenance thread, it may be delayed while a repository is being maintained
+	public void schedule(final Runnable runnable, long period) {
+		getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// an exception would cancel all future runs
+				try {
+					runnable.run();
+				}
+				catch (Exception e) {
+					logger.error("Scheduled task failed", e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	private synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "git-maintenance");
+					thread.setDaemon(true);
+					// maintenance should not compete with builds
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+	
+	public void maintainAll() {
+		for (File root : roots) {
+			for (File gitFolder : getRepositories(root)) {
+				try {
+					maintain(gitFolder, false);
+				}
+				catch (Exception e) {
+					logger.error("Could not maintain repository: " + gitFolder, e);
+				}
+			}
+		}
+	}
+	
+	// the shared object stores and the workspaces (<builds>/<workspace>/<project>/.git)
+	private List<File> getRepositories(File root) {
+		List<File> repositories = new ArrayList<File>();
+		File[] stores = new File(root, ".objects").listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && new File(file, "HEAD").exists();
+			}
+		});
+		if (stores != null) {
+			Collections.addAll(repositories, stores);
+		}
+		File[] workspaces = root.listFiles();
+		if (workspaces != null) {
+			for (File workspace : workspaces) {
+				File[] projects = workspace.getName().startsWith(".") ? null : workspace.listFiles();
+				if (projects != null) {
+					for (File project : projects) {
+						File gitFolder = new File(project, Constants.DOT_GIT);
+						if (gitFolder.isDirectory()) {
+							repositories.add(gitFolder);
+						}
+					}
+				}
+			}
+		}
+		return repositories;
+	}
+	
+	// check a single repository against the thresholds (or regardless of them if forced) and maintain it
+	public GitMaintenanceStatistics maintain(File gitFolder, boolean force) throws IOException {
+		String key = GitUtils.getProjectKey(gitFolder);
+		GitMaintenanceStatistics statistics = this.statistics.get(key);
+		if (statistics == null) {
+			statistics = new GitMaintenanceStatistics();
+			statistics.setRepository(gitFolder.getAbsolutePath());
+			this.statistics.put(key, statistics);
+		}
+		long started = System.currentTimeMillis();
+		// a store can only be repacked while the workspaces that borrow from it stand still, their locks come before the lock of the store
+		GitObjectStore store = GitObjectStore.isStore(gitFolder) ? new GitObjectStore(gitFolder) : null;
+		List<File> workspaces = null;
+		List<GitLock> workspaceLocks = Collections.emptyList();
+		if (store != null && (force || isRepackDue(gitFolder))) {
+			workspaces = store.getWorkspaces();
+			try {
+				workspaceLocks = store.lockWorkspaces(workspaces);
+			}
+			catch (IllegalStateException e) {
+				synchronized(statistics) {
+					statistics.setFailures(statistics.getFailures() + 1);
+				}
+				throw new IOException(e);
+			}
+		}
+		// the project lock for workspaces, the store itself is locked on its own folder
+		try (GitLock lock = GitLockManager.getInstance().lock(gitFolder); Repository repository = new FileRepositoryBuilder().setGitDir(gitFolder).setMustExist(true).build(); Git git = new Git(repository)) {
+			GarbageCollectCommand gc = git.gc().setProgressMonitor(NullProgressMonitor.INSTANCE);
+			boolean linked = new File(gitFolder, "objects/info/alternates").exists();
+			Properties before = gc.getStatistics();
+			// if a store crossed the thresholds after we checked, it waits for the next run
+			boolean repack = (force || isRepackDue(before)) && (store == null || workspaces != null);
+			boolean packRefs = repack || getLong(before, "numberOfLooseRefs") > looseRefs;
+			String action = "none";
+			if (repack && store != null) {
+				store.keepWorkspaceObjects(repository, workspaces);
+			}
+			if (repack && !linked) {
+				// this packs the refs, repacks (with bitmaps) and prunes
+				gc.call();
+				action = "repack";
+			}
+			else if (repack) {
+				GitInternals.packRefs(repository);
+				GitInternals.repackLocal(repository, System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(expire));
+				action = "repackLocal";
+			}
+			else if (packRefs) {
+				GitInternals.packRefs(repository);
+				action = "packRefs";
+			}
+			synchronized(statistics) {
+				statistics.setLinked(linked);
+				update(statistics, action.equals("none") ? before : gc.getStatistics());
+				statistics.setPackedRefsSize(new File(gitFolder, Constants.PACKED_REFS).length());
+				statistics.setLastAction(action);
+				statistics.setLastRun(new Date(started));
+				statistics.setLastDuration(System.currentTimeMillis() - started);
+				statistics.setRuns(statistics.getRuns() + 1);
+			}
+			if (!action.equals("none")) {
+				logger.info("Maintained repository '" + gitFolder + "' (" + action + ") in " + (System.currentTimeMillis() - started) + "ms: " + getLong(before, "numberOfLooseObjects") + " loose objects, " + getLong(before, "numberOfPackFiles") + " packs, " + getLong(before, "numberOfLooseRefs") + " loose refs before");
+			}
+			return statistics;
+		}
+		catch (Exception e) {
+			synchronized(statistics) {
+				statistics.setFailures(statistics.getFailures() + 1);
+			}
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+		finally {
+			GitObjectStore.unlock(workspaceLocks);
+		}
+	}
+	
+	private boolean isRepackDue(File gitFolder) throws IOException {
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitFolder).setMustExist(true).build(); Git git = new Git(repository)) {
+			return isRepackDue(git.gc().getStatistics());
+		}
+		catch (GitAPIException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private boolean isRepackDue(Properties statistics) {
+		return getLong(statistics, "numberOfLooseObjects") > looseObjects || getLong(statistics, "numberOfPackFiles") > packs;
+	}
+	
+	private void update(GitMaintenanceStatistics statistics, Properties repository) {
+		statistics.setLooseObjects(getLong(repository, "numberOfLooseObjects"));
+		statistics.setLooseSize(getLong(repository, "sizeOfLooseObjects"));
+		statistics.setPackedObjects(getLong(repository, "numberOfPackedObjects"));
+		statistics.setPackedSize(getLong(repository, "sizeOfPackedObjects"));
+		statistics.setPacks((int) getLong(repository, "numberOfPackFiles"));
+		statistics.setLooseRefs((int) getLong(repository, "numberOfLooseRefs"));
+		statistics.setPackedRefs((int) getLong(repository, "numberOfPackedRefs"));
+	}
+	
+	// the gc statistics of jgit, the values are numbers
+	private static long getLong(Properties properties, String key) {
+		Object value = properties.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return value == null ? 0 : Long.parseLong(value.toString());
+	}
+	
+	public List<GitMaintenanceStatistics> getStatistics() {
+		return new ArrayList<GitMaintenanceStatistics>(statistics.values());
+	}
+}
@@ -18,8 +18,10 @@
 package be.nabu.eai.module.git;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -75,6 +77,8 @@ public class GitMethods {
 	private RevCommit previousCommit;
 	private MergeResult result, previousResult;
 	private String currentEntryId;
+	// when merging in the object database, this holds the changes to the tree
+	private GitTreeOverlay overlay;
 
 	public GitMethods(GitRepository repository, MergeResult result, MergeResult previousResult, RevCommit previousCommit) {
 		this.repository = repository;
@@ -92,6 +96,61 @@ public class GitMethods {
 		return previousCommit == null ? null : repository.read(path, previousCommit);
 	}
 	
+	// the current content of a file in the entry that is being merged
+	public byte [] content(String path) {
+		path = getRepositoryPath(path);
+		if (overlay != null) {
+			return overlay.read(path);
+		}
+		File file = new File(repository.getFolder(), path);
+		try {
+			return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// update a file in the entry that is being merged, this works without a materialized directory
+	public void write(String path, byte [] content) {
+		path = getRepositoryPath(path);
+		if (overlay != null) {
+			overlay.write(path, content);
+		}
+		else {
+			File file = new File(repository.getFolder(), path);
+			file.getParentFile().mkdirs();
+			try {
+				Files.write(file.toPath(), content);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	public void delete(String path) {
+		path = getRepositoryPath(path);
+		if (overlay != null) {
+			overlay.delete(path);
+		}
+		else {
+			new File(repository.getFolder(), path).delete();
+		}
+	}
+	
+	// the path relative to the root of the git repository, the project folder itself is the root
+	private String getRepositoryPath(String path) {
+		path = path.replaceAll("^[/]+", "");
+		if (currentEntryId != null) {
+			int index = currentEntryId.indexOf('.');
+			if (index > 0) {
+				path = currentEntryId.substring(index + 1).replace(".", "/") + "/" + path;
+			}
+		}
+		return path;
+	}
+	
 	public MergeParameter previousParameter(String name) {
 		MergeEntry entry = previousEntry();
 		if (entry != null) {
@@ -427,6 +486,9 @@ public class GitMethods {
 	protected void setCurrentEntryId(String currentEntryId) {
 		this.currentEntryId = currentEntryId;
 	}
+	protected void setOverlay(GitTreeOverlay overlay) {
+		this.overlay = overlay;
+	}
 	
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private void toProperties(ComplexContent content, List<KeyValuePair> properties, String path, String separator) {
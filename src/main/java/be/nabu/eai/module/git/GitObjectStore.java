@@ -0,0 +1,375 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.ReflogEntry;
+import org.eclipse.jgit.lib.ReflogReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bare repository per project that holds the objects shared by all the workspaces of that project.
+ * Workspaces point to it through objects/info/alternates, so they only store the objects they create themselves (merges, tags...).
+ * 
+ * A repack of the store only keeps what the store itself can reach, while workspaces may depend on older objects (e.g. after a forced update of a branch).
+ * Before we repack, we add a ref (refs/workspaces/<workspace>/<id>) for every object in the store a workspace needs directly, while holding the locks of those workspaces.
+ */
+public class GitObjectStore {
+	
+	private static boolean enabled = Boolean.parseBoolean(System.getProperty("git.store.shared", "true"));
+	// when the store has more packs than this after an update, we repack it
+	private static int maxPacks = Integer.parseInt(System.getProperty("git.store.packs", "10"));
+	// how long (in ms) we wait for the lock of each workspace that borrows from us before we give up on a repack
+	private static long lockTimeout = Long.parseLong(System.getProperty("git.store.lockTimeout", "60000"));
+	// the refs that protect the objects borrowed by the workspaces
+	static final String R_WORKSPACES = Constants.R_REFS + "workspaces/";
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private File folder;
+	
+	public GitObjectStore(File folder) {
+		this.folder = folder;
+	}
+	
+	// the store lives next to the workspaces, workspace names are sanitized so they can't clash with it
+	public static GitObjectStore forProject(File builds, String name) {
+		return new GitObjectStore(new File(new File(builds, ".objects"), name + ".git"));
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	public static boolean isStore(File folder) {
+		return folder.getParentFile() != null && folder.getParentFile().getName().equals(".objects");
+	}
+	
+	public File getFolder() {
+		return folder;
+	}
+	
+	public File getObjectsFolder() {
+		return new File(folder, "objects");
+	}
+	
+	public boolean exists() {
+		return new File(folder, "HEAD").exists();
+	}
+	
+	// bring the store up to date with the remote, only the refs the workspaces are interested in are fetched
+	// the refspecs are those of a workspace, in the store we keep the refs under their original name
+	public void update(String uri, CredentialsProvider credentials, RefSpec...workspaceRefSpecs) throws GitAPIException, IOException {
+		try (GitLock lock = GitLockManager.getInstance().lock(folder)) {
+			try (Git git = open()) {
+				long started = System.currentTimeMillis();
+				git.fetch().setRemote(uri).setCredentialsProvider(credentials).setRefSpecs(GitCloner.toStoreRefSpecs(workspaceRefSpecs)).setTagOpt(TagOpt.NO_TAGS).call();
+				logger.info("Updated object store '" + folder + "' from '" + uri + "' in " + (System.currentTimeMillis() - started) + "ms");
+			}
+		}
+		packIfNeeded();
+	}
+	
+	// the same but from a repository (its .git folder) on the same machine, we link the object files and copy the refs
+	public void update(File source, RefSpec...workspaceRefSpecs) throws GitAPIException, IOException {
+		try (GitLock lock = GitLockManager.getInstance().lock(folder)) {
+			try (Git git = open(); Repository repository = new FileRepositoryBuilder().setGitDir(source).build()) {
+				long started = System.currentTimeMillis();
+				// refs first, the objects they point to will be there when we take the objects
+				Map<String, ObjectId> refs = GitUtils.getRefs(repository, GitCloner.toStoreRefSpecs(workspaceRefSpecs));
+				int copied = GitUtils.linkObjects(new File(source, "objects"), getObjectsFolder());
+				// if the source borrows objects from elsewhere, so do we
+				File alternates = new File(source, "objects/info/alternates");
+				File storeAlternates = new File(getObjectsFolder(), "info/alternates");
+				if (alternates.exists() && !storeAlternates.exists()) {
+					storeAlternates.getParentFile().mkdirs();
+					Files.copy(alternates.toPath(), storeAlternates.toPath());
+				}
+				if (GitUtils.isConnected(folder, refs)) {
+					GitUtils.setRefs(git.getRepository(), refs);
+				}
+				else {
+					logger.warn("The objects of '" + source + "' changed while we linked them, fetching instead");
+					git.fetch().setRemote(source.toURI().toString()).setRefSpecs(GitCloner.toStoreRefSpecs(workspaceRefSpecs)).setTagOpt(TagOpt.NO_TAGS).call();
+				}
+				logger.info("Updated object store '" + folder + "' from '" + source + "' in " + (System.currentTimeMillis() - started) + "ms, " + copied + " files had to be copied");
+			}
+		}
+		packIfNeeded();
+	}
+	
+	// the workspace locks are taken before the store lock, so we can only pack once we released the store
+	private void packIfNeeded() throws GitAPIException, IOException {
+		if (getPackCount() > maxPacks) {
+			try {
+				pack();
+			}
+			catch (IllegalStateException e) {
+				logger.warn("Could not pack object store '" + folder + "', we try again after the next update", e);
+			}
+		}
+	}
+	
+	private Git open() throws GitAPIException, IOException {
+		if (!exists()) {
+			folder.mkdirs();
+			Git.init().setBare(true).setGitDir(folder).call().close();
+		}
+		Git git = Git.open(folder);
+		StoredConfig config = git.getRepository().getConfig();
+		// the reflogs keep older tips reachable for the repack, workspaces may still depend on them after a forced update
+		if (!config.getBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_LOGALLREFUPDATES, false)) {
+			config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_LOGALLREFUPDATES, true);
+			config.save();
+		}
+		return git;
+	}
+	
+	// let a workspace (its .git folder) borrow objects from this store
+	public void link(File gitFolder) throws IOException {
+		File info = new File(gitFolder, "objects/info");
+		info.mkdirs();
+		try (OutputStream output = new FileOutputStream(new File(info, "alternates"))) {
+			output.write((getObjectsFolder().getCanonicalPath() + "\n").getBytes(Charset.forName("UTF-8")));
+		}
+	}
+	
+	// repack everything into a single pack, this is what keeps the store from growing with every update
+	public void pack() throws GitAPIException, IOException {
+		List<File> workspaces = getWorkspaces();
+		List<GitLock> locks = lockWorkspaces(workspaces);
+		try (GitLock lock = GitLockManager.getInstance().lock(folder); Git git = Git.open(folder)) {
+			long started = System.currentTimeMillis();
+			int kept = keepWorkspaceObjects(git.getRepository(), workspaces);
+			Properties statistics = git.gc().setProgressMonitor(NullProgressMonitor.INSTANCE).call();
+			logger.info("Packed object store '" + folder + "' in " + (System.currentTimeMillis() - started) + "ms, keeping " + kept + " objects for " + workspaces.size() + " workspaces: " + statistics);
+		}
+		finally {
+			unlock(locks);
+		}
+	}
+	
+	// the .git folders of the workspaces that borrow objects from this store (<builds>/<workspace>/<project>/.git)
+	List<File> getWorkspaces() throws IOException {
+		List<File> workspaces = new ArrayList<File>();
+		String objects = getObjectsFolder().getCanonicalPath();
+		File[] children = folder.getParentFile().getParentFile().listFiles();
+		if (children != null) {
+			// always in the same order, so two repacks can't lock them the other way around
+			Arrays.sort(children);
+			for (File workspace : children) {
+				File[] projects = workspace.getName().startsWith(".") ? null : workspace.listFiles();
+				if (projects != null) {
+					Arrays.sort(projects);
+					for (File project : projects) {
+						File alternates = new File(project, Constants.DOT_GIT + "/objects/info/alternates");
+						if (alternates.exists()) {
+							for (String line : Files.readAllLines(alternates.toPath(), Charset.forName("UTF-8"))) {
+								if (line.trim().equals(objects)) {
+									workspaces.add(new File(project, Constants.DOT_GIT));
+									break;
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return workspaces;
+	}
+	
+	// the locks of the workspaces, if we can't get one in time we give up rather than risk a deadlock with a workspace that is updating the store
+	List<GitLock> lockWorkspaces(List<File> workspaces) {
+		List<GitLock> locks = new ArrayList<GitLock>();
+		for (File workspace : workspaces) {
+			GitLock lock = GitLockManager.getInstance().lock(workspace, lockTimeout);
+			if (lock == null) {
+				unlock(locks);
+				throw new IllegalStateException("Could not lock workspace '" + workspace + "' to repack object store '" + folder + "'");
+			}
+			locks.add(lock);
+		}
+		return locks;
+	}
+	
+	static void unlock(List<GitLock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).close();
+		}
+	}
+	
+	// replace the refs that protect the borrowed objects with those the workspaces need right now, returns how many objects are protected
+	int keepWorkspaceObjects(Repository store, List<File> workspaces) throws IOException {
+		Map<String, ObjectId> keep = new TreeMap<String, ObjectId>();
+		try (ObjectReader storeReader = store.newObjectReader()) {
+			for (File gitFolder : workspaces) {
+				String prefix = R_WORKSPACES + gitFolder.getParentFile().getParentFile().getName() + "/";
+				try (Repository workspace = new FileRepositoryBuilder().setGitDir(gitFolder).setMustExist(true).build()) {
+					for (ObjectId id : getBorrowedObjects(workspace, storeReader)) {
+						keep.put(prefix + id.name(), id);
+					}
+				}
+			}
+		}
+		BatchRefUpdate update = store.getRefDatabase().newBatchUpdate();
+		update.setAllowNonFastForwards(true);
+		update.disableRefLog();
+		for (Ref ref : store.getRefDatabase().getRefsByPrefix(R_WORKSPACES)) {
+			ObjectId id = keep.remove(ref.getName());
+			if (id == null) {
+				update.addCommand(new ReceiveCommand(ref.getObjectId(), ObjectId.zeroId(), ref.getName(), ReceiveCommand.Type.DELETE));
+			}
+		}
+		for (Map.Entry<String, ObjectId> ref : keep.entrySet()) {
+			update.addCommand(new ReceiveCommand(ObjectId.zeroId(), ref.getValue(), ref.getKey(), ReceiveCommand.Type.CREATE));
+		}
+		if (!update.getCommands().isEmpty()) {
+			try (RevWalk revWalk = new RevWalk(store)) {
+				update.execute(revWalk, NullProgressMonitor.INSTANCE);
+			}
+			for (ReceiveCommand command : update.getCommands()) {
+				if (command.getResult() != ReceiveCommand.Result.OK) {
+					throw new IOException("Could not set '" + command.getRefName() + "' in object store '" + folder + "': " + command.getResult());
+				}
+			}
+		}
+		return store.getRefDatabase().getRefsByPrefix(R_WORKSPACES).size();
+	}
+	
+	// the objects in the store the workspace points to directly: from its refs, reflogs and index and from the objects it created itself
+	// we don't descend into the store, whatever it can reach from these objects is kept by the repack
+	private static Set<ObjectId> getBorrowedObjects(Repository workspace, ObjectReader storeReader) throws IOException {
+		Deque<ObjectId> todo = new ArrayDeque<ObjectId>();
+		List<Ref> refs = new ArrayList<Ref>(workspace.getRefDatabase().getRefs());
+		Ref head = workspace.exactRef(Constants.HEAD);
+		if (head != null) {
+			refs.add(head);
+		}
+		for (Ref ref : refs) {
+			if (ref.getObjectId() != null) {
+				todo.push(ref.getObjectId());
+			}
+			if (ref.getPeeledObjectId() != null) {
+				todo.push(ref.getPeeledObjectId());
+			}
+			ReflogReader reflog = workspace.getReflogReader(ref.getName());
+			if (reflog != null) {
+				for (ReflogEntry entry : reflog.getReverseEntries()) {
+					todo.push(entry.getOldId());
+					todo.push(entry.getNewId());
+				}
+			}
+		}
+		if (!workspace.isBare()) {
+			DirCache dirCache = workspace.readDirCache();
+			for (int i = 0; i < dirCache.getEntryCount(); i++) {
+				todo.push(dirCache.getEntry(i).getObjectId());
+			}
+		}
+		Set<ObjectId> seen = new HashSet<ObjectId>();
+		Set<ObjectId> borrowed = new HashSet<ObjectId>();
+		try (ObjectReader reader = workspace.newObjectReader()) {
+			while (!todo.isEmpty()) {
+				ObjectId id = todo.pop();
+				if (id.equals(ObjectId.zeroId()) || !seen.add(id)) {
+					continue;
+				}
+				if (storeReader.has(id)) {
+					borrowed.add(id);
+				}
+				// an object of the workspace itself, what it points to may be in the store
+				else if (reader.has(id)) {
+					ObjectLoader loader = reader.open(id);
+					switch (loader.getType()) {
+						case Constants.OBJ_COMMIT:
+							RevCommit commit = RevCommit.parse(loader.getCachedBytes());
+							todo.push(commit.getTree().copy());
+							for (RevCommit parent : commit.getParents()) {
+								todo.push(parent.copy());
+							}
+						break;
+						case Constants.OBJ_TAG:
+							todo.push(RevTag.parse(loader.getCachedBytes()).getObject().copy());
+						break;
+						case Constants.OBJ_TREE:
+							CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, id);
+							while (!parser.eof()) {
+								if (parser.getEntryFileMode() != FileMode.GITLINK) {
+									todo.push(parser.getEntryObjectId());
+								}
+								parser.next(1);
+							}
+						break;
+					}
+				}
+			}
+		}
+		return borrowed;
+	}
+	
+	private int getPackCount() {
+		File[] packs = new File(getObjectsFolder(), "pack").listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".pack");
+			}
+		});
+		return packs == null ? 0 : packs.length;
+	}
+}
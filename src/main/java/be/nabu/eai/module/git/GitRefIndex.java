@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.eclipse.jgit.lib.Ref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.java.BeanInstance;
+import be.nabu.libs.types.java.BeanResolver;
+
+/**
+ * The release model (releases, patches, environments and release candidates) is derived entirely from the ref names and the commits they point to.
+ * Parsing a commit for every ref is expensive once you have hundreds of RC tags, so we persist what we parsed in the git folder.
+ * The fingerprint covers all the refs that were indexed, if it matches nothing has moved and no commit needs to be parsed.
+ * If it doesn't match, we can still reuse every entry whose target did not change.
+ */
+@XmlRootElement(name = "refIndex")
+public class GitRefIndex {
+	
+	private static Logger logger = LoggerFactory.getLogger(GitRefIndex.class);
+	
+	private String fingerprint;
+	private List<GitRefIndexEntry> entries;
+	
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+	
+	public List<GitRefIndexEntry> getEntries() {
+		if (entries == null) {
+			synchronized(this) {
+				if (entries == null) {
+					entries = new ArrayList<GitRefIndexEntry>();
+				}
+			}
+		}
+		return entries;
+	}
+	public void setEntries(List<GitRefIndexEntry> entries) {
+		this.entries = entries;
+	}
+	
+	public Map<String, GitRefIndexEntry> getEntriesByReference() {
+		Map<String, GitRefIndexEntry> map = new HashMap<String, GitRefIndexEntry>();
+		for (GitRefIndexEntry entry : getEntries()) {
+			map.put(entry.getReference(), entry);
+		}
+		return map;
+	}
+	
+	// a stable hash over the name and target of all the given refs
+	public static String fingerprint(Collection<Ref> refs) {
+		List<Ref> sorted = new ArrayList<Ref>(refs);
+		sorted.sort(new Comparator<Ref>() {
+			@Override
+			public int compare(Ref o1, Ref o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			Charset charset = Charset.forName("UTF-8");
+			for (Ref ref : sorted) {
+				digest.update(ref.getName().getBytes(charset));
+				digest.update((byte) ' ');
+				digest.update((ref.getObjectId() == null ? "" : ref.getObjectId().getName()).getBytes(charset));
+				digest.update((byte) '\n');
+			}
+			StringBuilder builder = new StringBuilder();
+			for (byte single : digest.digest()) {
+				builder.append(String.format("%02x", single & 0xff));
+			}
+			return builder.toString();
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static GitRefIndex load(File file) {
+		if (file.exists()) {
+			try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+				XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(GitRefIndex.class), Charset.forName("UTF-8"));
+				return TypeUtils.getAsBean(binding.unmarshal(input, new Window[0]), GitRefIndex.class);
+			}
+			catch (Exception e) {
+				// the index is only a cache, if it is corrupt we simply rebuild it
+				logger.warn("Could not load ref index: " + file, e);
+			}
+		}
+		return null;
+	}
+	
+	public void save(File file) {
+		// write to a temporary file first so a concurrent reader never sees a half written index
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+				XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(GitRefIndex.class), Charset.forName("UTF-8"));
+				binding.marshal(output, new BeanInstance<GitRefIndex>(this));
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (Exception e) {
+			logger.warn("Could not save ref index: " + file, e);
+			temporary.delete();
+		}
+	}
+}
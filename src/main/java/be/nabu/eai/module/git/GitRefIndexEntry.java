@@ -0,0 +1,41 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+/**
+ * A single ref as it was seen when the index was last written.
+ * The target is the object the ref pointed to (for annotated tags this is the tag object, not the commit), it is used to detect refs that have moved.
+ */
+public class GitRefIndexEntry extends GitReference {
+	private String target;
+	
+	public GitRefIndexEntry() {
+		// auto
+	}
+	public GitRefIndexEntry(String reference, String target) {
+		super(reference);
+		this.target = target;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	public void setTarget(String target) {
+		this.target = target;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+/**
+ * Classifies release related ref names in a single pass without regular expressions:
+ * 
+ * - r12: a release
+ * - r12.3: a patch of a release
+ * - r12.3-qlty: an environment of a patch (an optional -FINAL suffix is ignored)
+ * - r12.3-qlty-RC7: a release candidate of an environment
+ * 
+ * Any leading path (e.g. refs/heads/ or refs/remotes/build/) is skipped.
+ */
+public class GitRefName {
+	
+	public enum Type {
+		RELEASE,
+		PATCH,
+		ENVIRONMENT,
+		CANDIDATE
+	}
+	
+	// we don't accept more digits than fit in an int
+	private static final int MAX_DIGITS = 9;
+	
+	private Type type;
+	private int release, patch, candidate;
+	private String environment;
+	
+	private GitRefName(Type type, int release, int patch, String environment, int candidate) {
+		this.type = type;
+		this.release = release;
+		this.patch = patch;
+		this.environment = environment;
+		this.candidate = candidate;
+	}
+	
+	// returns null if the name is not release related
+	public static GitRefName parse(String name) {
+		if (name == null) {
+			return null;
+		}
+		int length = name.length();
+		int index = name.lastIndexOf('/') + 1;
+		if (index >= length || name.charAt(index) != 'r') {
+			return null;
+		}
+		index++;
+		int release = 0;
+		int start = index;
+		while (index < length && isDigit(name.charAt(index))) {
+			release = release * 10 + (name.charAt(index++) - '0');
+		}
+		if (index == start || index - start > MAX_DIGITS) {
+			return null;
+		}
+		if (index == length) {
+			return new GitRefName(Type.RELEASE, release, -1, null, -1);
+		}
+		if (name.charAt(index++) != '.') {
+			return null;
+		}
+		int patch = 0;
+		start = index;
+		while (index < length && isDigit(name.charAt(index))) {
+			patch = patch * 10 + (name.charAt(index++) - '0');
+		}
+		if (index == start || index - start > MAX_DIGITS) {
+			return null;
+		}
+		if (index == length) {
+			return new GitRefName(Type.PATCH, release, patch, null, -1);
+		}
+		if (name.charAt(index++) != '-') {
+			return null;
+		}
+		// everything after the first '-' is the environment, minus a possible suffix
+		int end = length;
+		int candidate = -1;
+		int dash = name.lastIndexOf('-');
+		if (dash >= index) {
+			if (dash + 3 < length && name.charAt(dash + 1) == 'R' && name.charAt(dash + 2) == 'C') {
+				int value = 0;
+				int position = dash + 3;
+				while (position < length && isDigit(name.charAt(position))) {
+					value = value * 10 + (name.charAt(position++) - '0');
+				}
+				if (position == length && position - dash - 3 <= MAX_DIGITS) {
+					candidate = value;
+					end = dash;
+				}
+			}
+			else if (length - dash == 6 && name.startsWith("FINAL", dash + 1)) {
+				end = dash;
+			}
+		}
+		if (end <= index) {
+			return null;
+		}
+		return new GitRefName(candidate >= 0 ? Type.CANDIDATE : Type.ENVIRONMENT, release, patch, name.substring(index, end), candidate);
+	}
+	
+	private static boolean isDigit(char character) {
+		return character >= '0' && character <= '9';
+	}
+
+	public Type getType() {
+		return type;
+	}
+	public int getRelease() {
+		return release;
+	}
+	// -1 for a release
+	public int getPatch() {
+		return patch;
+	}
+	// null for releases and patches
+	public String getEnvironment() {
+		return environment;
+	}
+	// -1 if this is not a release candidate
+	public int getCandidate() {
+		return candidate;
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("r").append(release);
+		if (patch >= 0) {
+			builder.append(".").append(patch);
+		}
+		if (environment != null) {
+			builder.append("-").append(environment);
+		}
+		if (candidate >= 0) {
+			builder.append("-RC").append(candidate);
+		}
+		return builder.toString();
+	}
+}
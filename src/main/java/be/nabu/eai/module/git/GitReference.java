@@ -21,15 +21,22 @@ import java.util.Date;
 
 import javax.xml.bind.annotation.XmlTransient;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 
+/**
+ * We keep thousands of these around for large build workspaces so we only retain the commit id, time and author.
+ * If you need the actual commit, parse it on demand through the repository.
+ */
 public class GitReference {
+	private static final long NO_TIME = Long.MIN_VALUE;
+	
 	// the reference name, e.g. refs/heads/master
 	private String reference;
-	private String commit;
-	private Date date;
+	private ObjectId commit;
+	// the commit time in milliseconds
+	private long time = NO_TIME;
 	private String author, email;
-	private RevCommit revCommit;
 	
 	public GitReference() {
 		// auto
@@ -51,42 +58,58 @@ public class GitReference {
 	}
 	
 	public String getCommit() {
-		return commit;
+		return commit == null ? null : commit.getName();
 	}
 	public void setCommit(String commit) {
-		this.commit = commit;
+		this.commit = commit == null ? null : ObjectId.fromString(commit);
 	}
 	
-	
 	@XmlTransient
-	public RevCommit getRevCommit() {
-		return revCommit;
+	public ObjectId getObjectId() {
+		return commit;
 	}
+	
+	// we only extract what we need, the commit itself is not retained
 	public void setRevCommit(RevCommit commit) {
-		date = GitUtils.getCommitDate(commit);
-		
-		author = commit.getAuthorIdent().getName();
-		email = commit.getAuthorIdent().getEmailAddress();
-		this.commit = commit.getId().getName();
-		this.revCommit = commit;
+		time = GitUtils.getCommitDate(commit).getTime();
+		author = intern(commit.getAuthorIdent().getName());
+		email = intern(commit.getAuthorIdent().getEmailAddress());
+		this.commit = commit.getId().copy();
+	}
+
+	// take over the commit information of another reference (e.g. a cached index entry) without parsing the commit again
+	void setCommitInformation(GitReference other) {
+		commit = other.commit;
+		time = other.time;
+		author = other.author;
+		email = other.email;
+	}
+	
+	// there are only a handful of distinct authors, no need to keep a copy per reference
+	private static String intern(String value) {
+		return value == null ? null : value.intern();
 	}
 	
 	public Date getDate() {
-		return date;
+		return time == NO_TIME ? null : new Date(time);
 	}
 	public void setDate(Date date) {
-		this.date = date;
+		this.time = date == null ? NO_TIME : date.getTime();
+	}
+	@XmlTransient
+	public long getTime() {
+		return time;
 	}
 	public String getAuthor() {
 		return author;
 	}
 	public void setAuthor(String author) {
-		this.author = author;
+		this.author = intern(author);
 	}
 	public String getEmail() {
 		return email;
 	}
 	public void setEmail(String email) {
-		this.email = email;
+		this.email = intern(email);
 	}
 }
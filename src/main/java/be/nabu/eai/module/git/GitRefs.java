@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Ref access on top of the ref database: exact lookups and prefix scoped listings instead of listing (and sorting) all branches and tags.
+ * Results are cached until you invalidate, the repository does this at the start of every operation and whenever it moves refs itself.
+ */
+public class GitRefs {
+	
+	private Repository repository;
+	private Map<String, Ref> exact = new HashMap<String, Ref>();
+	private Map<String, List<Ref>> prefixed = new HashMap<String, List<Ref>>();
+	
+	public GitRefs(Repository repository) {
+		this.repository = repository;
+	}
+	
+	public synchronized Ref exact(String name) {
+		if (!exact.containsKey(name)) {
+			try {
+				exact.put(name, repository.getRefDatabase().exactRef(name));
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return exact.get(name);
+	}
+	
+	public synchronized List<Ref> prefixed(String prefix) {
+		List<Ref> list = prefixed.get(prefix);
+		if (list == null) {
+			try {
+				list = repository.getRefDatabase().getRefsByPrefix(prefix);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			prefixed.put(prefix, list);
+		}
+		return list;
+	}
+	
+	// a local branch takes precedence over remote ones
+	public Ref getBranch(String name) {
+		Ref ref = exact(Constants.R_HEADS + name);
+		if (ref == null) {
+			for (String remote : new TreeSet<String>(repository.getRemoteNames())) {
+				ref = exact(Constants.R_REMOTES + remote + "/" + name);
+				if (ref != null) {
+					break;
+				}
+			}
+		}
+		return ref;
+	}
+	
+	public Ref getTag(String name) {
+		return exact(Constants.R_TAGS + name);
+	}
+	
+	// all local and remote branches that start with "r", this includes all the release, patch and environment branches
+	public List<Ref> getReleaseBranches() {
+		List<Ref> refs = new ArrayList<Ref>(prefixed(Constants.R_HEADS + "r"));
+		for (String remote : new TreeSet<String>(repository.getRemoteNames())) {
+			refs.addAll(prefixed(Constants.R_REMOTES + remote + "/r"));
+		}
+		return refs;
+	}
+	
+	// all the tags that start with "r", this includes the release candidates
+	public List<Ref> getReleaseTags() {
+		return prefixed(Constants.R_TAGS + "r");
+	}
+	
+	// the version tags v1, v2...
+	public List<Ref> getVersionTags() {
+		List<Ref> refs = new ArrayList<Ref>();
+		for (Ref ref : prefixed(Constants.R_TAGS + "v")) {
+			if (getVersion(ref) >= 0) {
+				refs.add(ref);
+			}
+		}
+		return refs;
+	}
+	
+	public int getHighestVersion() {
+		int highestVersion = 0;
+		for (Ref ref : getVersionTags()) {
+			highestVersion = Math.max(highestVersion, getVersion(ref));
+		}
+		return highestVersion;
+	}
+	
+	// the version number of a vN tag, -1 if it is not a version tag
+	public static int getVersion(Ref ref) {
+		String name = ref.getName();
+		int index = name.lastIndexOf('/') + 1;
+		if (index >= name.length() - 1 || name.charAt(index) != 'v' || name.length() - index - 1 > 9) {
+			return -1;
+		}
+		int version = 0;
+		for (int i = index + 1; i < name.length(); i++) {
+			char character = name.charAt(i);
+			if (character < '0' || character > '9') {
+				return -1;
+			}
+			version = version * 10 + (character - '0');
+		}
+		return version;
+	}
+	
+	public synchronized void invalidate() {
+		exact.clear();
+		prefixed.clear();
+	}
+}
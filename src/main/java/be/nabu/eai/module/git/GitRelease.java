@@ -24,6 +24,13 @@ import java.util.TreeSet;
 import javax.xml.bind.annotation.XmlTransient;
 
 public class GitRelease extends GitReference {
+	private static final Comparator<GitPatch> PATCH_COMPARATOR = new Comparator<GitPatch>() {
+		@Override
+		public int compare(GitPatch o1, GitPatch o2) {
+			return Integer.compare(o1.getPatch(), o2.getPatch());
+		}
+	};
+	
 	private int version;
 	private TreeSet<GitPatch> patchVersions;
 	private String branch;
@@ -52,12 +59,7 @@ public class GitRelease extends GitReference {
 		if (patchVersions == null) {
 			synchronized(this) {
 				if (patchVersions == null) {		
-					patchVersions = new TreeSet<GitPatch>(new Comparator<GitPatch>() {
-						@Override
-						public int compare(GitPatch o1, GitPatch o2) {
-							return o1.getPatch() - o2.getPatch();
-						}
-					});
+					patchVersions = new TreeSet<GitPatch>(PATCH_COMPARATOR);
 				}
 			}
 		}
@@ -32,7 +32,7 @@ public class GitReleaseCandidate extends GitReference {
 
 	@Override
 	public String toString() {
-		return getReference().replaceAll(".*-(RC[0-9]+)$", "$1");
+		return "RC" + candidate;
 	}
 
 	public int getCandidate() {
@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Builds the release tree from ref names, the hashed indexes make building it linear in the amount of refs.
+ * The indexes are only valid while building, once the tree is handed out it can be modified directly.
+ */
+public class GitReleaseModel {
+	
+	private static final Comparator<GitRelease> RELEASE_COMPARATOR = new Comparator<GitRelease>() {
+		@Override
+		public int compare(GitRelease releaseA, GitRelease releaseB) {
+			return Integer.compare(releaseA.getVersion(), releaseB.getVersion());
+		}
+	};
+	
+	private TreeSet<GitRelease> versions = newVersions();
+	private Map<Integer, GitRelease> releases = new HashMap<Integer, GitRelease>();
+	private Map<Long, GitPatch> patches = new HashMap<Long, GitPatch>();
+	private Map<String, GitEnvironment> environments = new HashMap<String, GitEnvironment>();
+	
+	public static TreeSet<GitRelease> newVersions() {
+		return new TreeSet<GitRelease>(RELEASE_COMPARATOR);
+	}
+	
+	public GitRelease getRelease(int release) {
+		GitRelease existing = releases.get(release);
+		if (existing == null) {
+			existing = new GitRelease(release);
+			releases.put(release, existing);
+			versions.add(existing);
+		}
+		return existing;
+	}
+	
+	public GitPatch getPatch(int release, int patch) {
+		Long key = ((long) release << 32) | patch;
+		GitPatch existing = patches.get(key);
+		if (existing == null) {
+			GitRelease gitRelease = getRelease(release);
+			existing = new GitPatch(gitRelease, patch);
+			patches.put(key, existing);
+			gitRelease.getPatchVersions().add(existing);
+		}
+		return existing;
+	}
+	
+	public GitEnvironment getEnvironment(int release, int patch, String name) {
+		String key = release + "." + patch + "-" + name;
+		GitEnvironment existing = environments.get(key);
+		if (existing == null) {
+			GitPatch gitPatch = getPatch(release, patch);
+			existing = new GitEnvironment(gitPatch, name);
+			environments.put(key, existing);
+			gitPatch.getEnvironments().add(existing);
+		}
+		return existing;
+	}
+	
+	// registers a branch (e.g. refs/heads/r1.0-qlty) and returns the matching release, patch or environment, null if it is not release related
+	public GitReference addBranch(String reference) {
+		GitRefName name = GitRefName.parse(reference);
+		GitReference result = null;
+		if (name != null) {
+			switch (name.getType()) {
+				case RELEASE:
+					result = getRelease(name.getRelease());
+				break;
+				case PATCH:
+					result = getPatch(name.getRelease(), name.getPatch());
+				break;
+				case ENVIRONMENT:
+					result = getEnvironment(name.getRelease(), name.getPatch(), name.getEnvironment());
+				break;
+				// release candidates are tags, not branches
+				default:
+			}
+		}
+		if (result != null) {
+			result.setReference(reference);
+		}
+		return result;
+	}
+	
+	// registers a tag (e.g. refs/tags/r1.0-qlty-RC2) and returns the new release candidate, null if it is not a release candidate
+	public GitReleaseCandidate addTag(String reference) {
+		GitRefName name = GitRefName.parse(reference);
+		if (name != null && name.getType() == GitRefName.Type.CANDIDATE) {
+			GitReleaseCandidate candidate = new GitReleaseCandidate(reference, name.getCandidate());
+			getEnvironment(name.getRelease(), name.getPatch(), name.getEnvironment()).getReleaseCandidates().add(candidate);
+			return candidate;
+		}
+		return null;
+	}
+
+	public TreeSet<GitRelease> getVersions() {
+		return versions;
+	}
+}
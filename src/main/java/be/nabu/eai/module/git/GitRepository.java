@@ -20,9 +20,11 @@ package be.nabu.eai.module.git;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,27 +33,44 @@ import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.function.Predicate;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.JAXBContext;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.PullResult;
 import org.eclipse.jgit.api.TransportCommand;
-import org.eclipse.jgit.api.ListBranchCommand.ListMode;
 import org.eclipse.jgit.api.MergeCommand.FastForwardMode;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.InvalidRefNameException;
@@ -60,20 +79,39 @@ import org.eclipse.jgit.api.errors.NoHeadException;
 import org.eclipse.jgit.api.errors.RefAlreadyExistsException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
 import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.TagOpt;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -91,10 +129,7 @@ import be.nabu.glue.core.repositories.DynamicScriptRepository;
 import be.nabu.glue.impl.SimpleExecutionEnvironment;
 import be.nabu.glue.services.ServiceMethodProvider;
 import be.nabu.glue.utils.ScriptRuntime;
-import be.nabu.libs.resources.ResourceUtils;
 import be.nabu.libs.resources.URIUtils;
-import be.nabu.libs.resources.api.Resource;
-import be.nabu.libs.resources.file.FileDirectory;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.binding.api.Window;
@@ -102,8 +137,10 @@ import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.libs.types.java.BeanInstance;
 import be.nabu.libs.types.java.BeanResolver;
 import be.nabu.utils.io.IOUtils;
-import be.nabu.utils.io.api.ByteBuffer;
 import be.nabu.utils.security.EncryptionXmlAdapter;
+import nabu.misc.git.types.GitArtifactEntry;
+import nabu.misc.git.types.GitArtifactManifest;
+import nabu.misc.git.types.GitArtifactRange;
 import nabu.misc.git.types.MergeEntry;
 import nabu.misc.git.types.MergeParameter;
 import nabu.misc.git.types.MergeResult;
@@ -201,8 +238,18 @@ public class GitRepository implements AutoCloseable {
 	// for security reasons, this is not pushed to origin
 	// though if you want to, you can set these two to the same point
 	private String remoteBuild = "build";
+	// the refs we created or moved that still need to be pushed to the build remote
+	private Set<String> buildRefs = new LinkedHashSet<String>();
+	// whether the build remote supports atomic pushes, we assume it does until it tells us otherwise
+	private boolean atomicPush = true;
 	private Git git;
-	private TreeSet<GitRelease> versions;
+	private GitRefs refs;
+	// the working model of the running operation and the fingerprint of the release refs it was built from
+	private TreeSet<GitRelease> model;
+	private String modelFingerprint;
+	// the versions for readers, they never wait for a running operation and only get a read-only view
+	private volatile Versions snapshot;
+	private Object snapshotLock = new Object(), indexLock = new Object();
 	// how many versions we check
 	private int secondaryDepth = 0;
 	
@@ -212,12 +259,32 @@ public class GitRepository implements AutoCloseable {
 	private String username, password;
 	// where to store zipped results for fast access
 	private File zipFolder;
+	private GitArtifactCache artifacts;
+	// "object" merges straight into the object database, "worktree" checks out the environment branch and merges on disk
+	private static String mergeMode = System.getProperty("git.merge.mode", "object");
+	// in object mode, whether the merge scripts get a temporary copy of their node folder to work on
+	private static boolean materialize = Boolean.parseBoolean(System.getProperty("git.merge.materialize", "true"));
+	// in object mode, how many environments of a repository we merge at the same time
+	private static int mergeThreads = Integer.parseInt(System.getProperty("git.merge.threads", "" + Math.min(4, Runtime.getRuntime().availableProcessors())));
+	// in minutes, how long we wait for the environments that are merged in parallel before we give up on all of them
+	private static long mergeTimeout = Long.parseLong(System.getProperty("git.merge.timeout", "60"));
+	// how many refs we retain for the build remote while it is unreachable, the oldest are dropped first
+	private static int maxBuildRefs = Integer.parseInt(System.getProperty("git.build.maxPendingRefs", "1000"));
+	
+	private static class Versions {
+		private String fingerprint;
+		private TreeSet<GitRelease> releases;
+		private Versions(String fingerprint, TreeSet<GitRelease> releases) {
+			this.fingerprint = fingerprint;
+			this.releases = releases;
+		}
+	}
 	
 	public static void main(String...args) throws IOException, NoHeadException, GitAPIException {
 		GitRepository gitRepository = new GitRepository(new File("/home/alex/nabu/builds/cloud/portal"));
 		System.out.println(gitRepository.getVersions());
 //		System.out.println(gitRepository.getMergeResult("refs/remotes/build/r10.0-prd"));
-		System.out.println("last: " + gitRepository.getLastVersion().getReference());
+		System.out.println("last: " + getLastVersion(gitRepository.getVersions()).getReference());
 //		for (RevCommit commit : gitRepository.getCommitsOn("refs/remotes/build/r10.0")) {
 //			System.out.println("commit on branch: " + commit.getId().getName() + " / " + commit.getAuthorIdent().getWhen());
 //		}
@@ -246,6 +313,7 @@ public class GitRepository implements AutoCloseable {
 		}
 		try {
 			git = Git.open(folder);
+			refs = new GitRefs(git.getRepository());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -253,7 +321,7 @@ public class GitRepository implements AutoCloseable {
 	}
 	
 	public List<String> getCurrentEnvironments() {
-		GitRelease lastVersion = getLastVersion();
+		GitRelease lastVersion = getLastVersion(getVersions());
 		GitPatch patchVersion = lastVersion.getLastPatch();
 		List<String> environments = new ArrayList<String>();
 		for (GitEnvironment environment : patchVersion.getEnvironments()) {
@@ -264,15 +332,20 @@ public class GitRepository implements AutoCloseable {
 	
 	public List<String> getEnvironments(int release, int patch) {
 		List<String> environments = new ArrayList<String>();
-		GitPatch patchVersion = getPatchVersion(getVersions(), "r" + release + "." + patch);
+		GitPatch patchVersion = getPatchVersion(getVersions(), release, patch);
 		for (GitEnvironment environment : patchVersion.getEnvironments()) {
 			environments.add(environment.getName());
 		}
 		return environments;
 	}
 	
-	public void addEnvironment(String name, String copyFromOther) {
-		GitPatch lastPatch = getLastVersion().getLastPatch();
+	synchronized public void addEnvironment(String name, String copyFromOther) {
+		addEnvironment(name, copyFromOther, getCredentials());
+	}
+	
+	synchronized public void addEnvironment(String name, String copyFromOther, CredentialsProvider credentials) {
+		refreshModel();
+		GitPatch lastPatch = getLastVersion(getModel()).getLastPatch();
 		GitEnvironment originalEnvironment = null;
 		if (copyFromOther != null) {
 			List<GitEnvironment> environments = lastPatch.getEnvironments();
@@ -283,20 +356,28 @@ public class GitRepository implements AutoCloseable {
 				}
 			}
 		}
-		createEnvironmentBranch(lastPatch.getRelease(), lastPatch, name, originalEnvironment);
+		GitEnvironment environment = createEnvironmentBranch(lastPatch.getRelease(), lastPatch, name);
+		merge(environment, originalEnvironment, null);
+		pushBuild(credentials);
 	}
 	
-	private <T extends TransportCommand<?, ?>> T authenticate(T command) {
-		if (username != null) {
-			command.setCredentialsProvider(new UsernamePasswordCredentialsProvider(username, password));
+	private <T extends TransportCommand<?, ?>> T authenticate(T command, CredentialsProvider credentials) {
+		if (credentials != null) {
+			command.setCredentialsProvider(credentials);
 		}
 		return command;
 	}
 	
+	// the default credentials of this instance, shared repositories should pass the credentials per operation instead
+	private CredentialsProvider getCredentials() {
+		return username == null ? null : new UsernamePasswordCredentialsProvider(username, password);
+	}
+	
 	public List<String> getReleaseNotes(int release, int patch) throws RevisionSyntaxException, AmbiguousObjectException, IncorrectObjectTypeException, IOException, NoHeadException, GitAPIException {
 		List<String> logs = new ArrayList<String>();
 		Iterable<RevCommit> commits = null;
 		Date until = null;
+		refs.invalidate();
 		Ref toRef = getTag("v" + release);
 		Ref toPeel = git.getRepository().getRefDatabase().peel(toRef);
 		
@@ -349,8 +430,13 @@ public class GitRepository implements AutoCloseable {
 	
 	// secondary updates are on separate branches, we check the last commits to see if we have for example applied a hotfix, or changed the settings of a particular RC candidate
 	synchronized public List<GitPatch> checkForSecondaryUpdates(Integer versionToCheck) {
+		return checkForSecondaryUpdates(versionToCheck, getCredentials());
+	}
+	
+	synchronized public List<GitPatch> checkForSecondaryUpdates(Integer versionToCheck, CredentialsProvider credentials) {
 		List<GitPatch> newPatches = new ArrayList<GitPatch>();
 		logger.info("Checking for hotfix updates for project: " + projectName);
+		refreshModel();
 		// originally the plan was to walk over the last x commits and check which branches they applied to, assuming this would be the fastest way
 		// but git does not keep track of which branch a commit was originally committed on as a commit can be applied to multiple branches, branches can be renamed etc while a commit is immutable
 		// we _can_ ask if a commit was applied to a particular branch, but that would mean looping over commits and for each commit looping over the branches to see if it was committed
@@ -367,111 +453,168 @@ public class GitRepository implements AutoCloseable {
 //		}
 		// so instead we will check all (or only the last x?) releases to see if they saw an update.
 		int counter = 0;
-		Map<String, Ref> remoteMap;
-		try {
-			// this is equivalent to git ls-remote
-			// not git show-ref, for that you need to do git.getRepository().getRefDatabase().getRefs()
-			remoteMap = authenticate(git.lsRemote()).setTags(false).callAsMap();
-		}
-		catch (Exception e) {
-			logger.error("Could not list remote", e);
-			remoteMap = new HashMap<String, Ref>();
-		}
-		for (GitRelease version : getVersions().descendingSet()) {
-			if (versionToCheck != null && version.getVersion() != versionToCheck) {
-				continue;
-			}
-			try {
-				// check if someone added commits to the release branch
-				if (remote != null && remoteMap.containsKey("refs/heads/" + version.getBranch())) {
-					// we need to check out the correct branch before we can do a pull, otherwise it might get merged into the wrong branch
-					git.checkout().setName(version.getBranch()).call();
-					try {
-						// pull the latest data
-						logger.info("Pulling last data for branch '" + version.getBranch() + "' from '" + remote + "'");
-						PullResult call = authenticate(git.pull()).setFastForward(FastForwardMode.FF_ONLY).setRemoteBranchName(version.getBranch()).setRemote(remote).call();
-						if (call.getMergeResult().getConflicts() != null && !call.getMergeResult().getConflicts().isEmpty()) {
-							throw new RuntimeException("Merge conflicts detected: " + call);
-						}
-					}
-					finally {
-						git.checkout().setName(branch).call();
-					}
-				}
-				else if (remote != null) {
-					logger.warn("Can not pull updates from '" + remote + "' for branch '" + version.getBranch() + "'");
+		boolean fetched = fetchReleaseBranches(credentials);
+		// we resolve a lot of branch tips here, share a single walker for all of them
+		try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+			for (GitRelease version : getModel().descendingSet()) {
+				if (versionToCheck != null && version.getVersion() != versionToCheck) {
+					continue;
 				}
+				try {
+					// check if someone added commits to the release branch
+					if (fetched) {
+						fastForward(revWalk, version.getBranch());
+					}
 				
-				// we can have a new commit on a version, this would result in a new patch version
-				// we check this by comparing the commit date of the last patch with the last commit on this branch
-				RevCommit lastCommitOn = getLastCommitOn(version.getBranch());
-				GitPatch lastPatch = version.getLastPatch();
+					// we can have a new commit on a version, this would result in a new patch version
+					// we check this by comparing the commit date of the last patch with the last commit on this branch
+					RevCommit lastCommitOn = getLastCommitOn(revWalk, version.getBranch());
+					GitPatch lastPatch = version.getLastPatch();
 
-				if (lastCommitOn != null) {
-					// the last patch should not be null unless you are doing manual shenanigans
-					if (lastPatch == null || GitUtils.getCommitDate(lastCommitOn).after(lastPatch.getDate())) {
-						int patchVersion = lastPatch == null ? 0 : lastPatch.getPatch() + 1;
-						logger.info("Hotfix found for r" + version.getVersion() + ", creating new patch version r" + version.getVersion() + "." + patchVersion);
-						newPatches.add(createPatch(version, patchVersion));
-					}
+					if (lastCommitOn != null) {
+						// the last patch should not be null unless you are doing manual shenanigans
+						if (lastPatch == null || GitUtils.getCommitDate(lastCommitOn).after(lastPatch.getDate())) {
+							int patchVersion = lastPatch == null ? 0 : lastPatch.getPatch() + 1;
+							logger.info("Hotfix found for r" + version.getVersion() + ", creating new patch version r" + version.getVersion() + "." + patchVersion);
+							newPatches.add(createPatch(version, patchVersion));
+						}
 					
-					counter++;
-					if (secondaryDepth > 0 && counter > secondaryDepth) {
-						break;
+						counter++;
+						if (secondaryDepth > 0 && counter > secondaryDepth) {
+							break;
+						}
 					}
-				}
 				
-				// we should not have commits on a patch version itself, but we can have additional commits on an environment branch
-				// in theory there should only be changes to the last patch version, for performance reasons we'll assume that for now
-				// in the future we could scan all patch versions
-				if (lastPatch != null) {
-					for (GitEnvironment environment : lastPatch.getEnvironments()) {
-						lastCommitOn = getLastCommitOn(environment.getBranch());
-						if (lastCommitOn != null) {
-							// if we have a commit after the last release candidate, we must perform a new merge
-							GitReleaseCandidate lastReleaseCandidate = environment.getLastReleaseCandidate();
-							if (lastReleaseCandidate == null || GitUtils.getCommitDate(lastCommitOn).after(lastReleaseCandidate.getDate())) {
-								logger.info("Detected change to environment: " + environment.getBranch());
-								// get the last environment to check against
-								GitEnvironment last = null;
-								GitPatch previousPatch = null;
-								// we can check the previous patch
-								if (lastPatch.getPatch() > 0) {
-									previousPatch = version.getPatchVersions().lower(lastPatch);
-								}
-								// otherwise, we have to look at the previous version
-								else {
-									GitRelease previousVersion = getVersions().lower(version);
-									if (previousVersion != null) {
-										previousPatch = previousVersion.getLastPatch();
+					// we should not have commits on a patch version itself, but we can have additional commits on an environment branch
+					// in theory there should only be changes to the last patch version, for performance reasons we'll assume that for now
+					// in the future we could scan all patch versions
+					if (lastPatch != null) {
+						Map<GitEnvironment, GitEnvironment> merges = new LinkedHashMap<GitEnvironment, GitEnvironment>();
+						for (GitEnvironment environment : lastPatch.getEnvironments()) {
+							lastCommitOn = getLastCommitOn(revWalk, environment.getBranch());
+							if (lastCommitOn != null) {
+								// if we have a commit after the last release candidate, we must perform a new merge
+								GitReleaseCandidate lastReleaseCandidate = environment.getLastReleaseCandidate();
+								if (lastReleaseCandidate == null || GitUtils.getCommitDate(lastCommitOn).after(lastReleaseCandidate.getDate())) {
+									logger.info("Detected change to environment: " + environment.getBranch());
+									// get the last environment to check against
+									GitEnvironment last = null;
+									GitPatch previousPatch = null;
+									// we can check the previous patch
+									if (lastPatch.getPatch() > 0) {
+										previousPatch = version.getPatchVersions().lower(lastPatch);
 									}
-								}
-								if (previousPatch != null) {
-									for (GitEnvironment potential : previousPatch.getEnvironments()) {
-										if (potential.getName().equals(environment.getName())) {
-											last = potential;
-											break;
+									// otherwise, we have to look at the previous version
+									else {
+										GitRelease previousVersion = getModel().lower(version);
+										if (previousVersion != null) {
+											previousPatch = previousVersion.getLastPatch();
+										}
+									}
+									if (previousPatch != null) {
+										for (GitEnvironment potential : previousPatch.getEnvironments()) {
+											if (potential.getName().equals(environment.getName())) {
+												last = potential;
+												break;
+											}
 										}
 									}
+									merges.put(environment, last);
 								}
-								merge(environment, last);
 							}
 						}
+						if (!merges.isEmpty()) {
+							merge(merges);
+						}
 					}
 				}
-			}
-			catch (Exception e) {
-				logger.error("Could not scan version r" + version.getVersion(), e);
+				catch (Exception e) {
+					logger.error("Could not scan version r" + version.getVersion(), e);
+				}
 			}
 		}
+		pushBuild(credentials);
 		return newPatches;
 	}
 	
+	// fetch all the release branches in a single round trip, they end up in the remote tracking refs and are fast forwarded from there
+	private boolean fetchReleaseBranches(CredentialsProvider credentials) {
+		if (remote == null) {
+			return false;
+		}
+		try {
+			long started = System.currentTimeMillis();
+			FetchResult result = authenticate(git.fetch(), credentials).setRemote(remote)
+				.setRefSpecs(new RefSpec("+" + Constants.R_HEADS + "r*:" + Constants.R_REMOTES + remote + "/r*"))
+				.setTagOpt(TagOpt.NO_TAGS)
+				.call();
+			logger.info("Fetched release branches from '" + remote + "' in " + (System.currentTimeMillis() - started) + "ms, " + result.getTrackingRefUpdates().size() + " updated");
+			refsChanged();
+			return true;
+		}
+		catch (Exception e) {
+			logger.error("Could not fetch release branches from '" + remote + "'", e);
+			return false;
+		}
+	}
+	
+	// move the local branch to the fetched remote tracking branch if that is a fast forward, this is what a pull with FF_ONLY did but without a checkout
+	private void fastForward(RevWalk revWalk, String branchName) throws IOException {
+		Repository repository = git.getRepository();
+		Ref remoteRef = repository.exactRef(Constants.R_REMOTES + remote + "/" + branchName);
+		if (remoteRef == null) {
+			logger.warn("Can not pull updates from '" + remote + "' for branch '" + branchName + "'");
+			return;
+		}
+		Ref localRef = repository.exactRef(Constants.R_HEADS + branchName);
+		if (localRef != null && localRef.getObjectId().equals(remoteRef.getObjectId())) {
+			return;
+		}
+		if (branchName.equals(getCheckedOutBranch())) {
+			logger.warn("Can not fast forward branch '" + branchName + "' because it is checked out");
+			return;
+		}
+		if (localRef != null) {
+			RevCommit localCommit = revWalk.parseCommit(localRef.getObjectId());
+			RevCommit remoteCommit = revWalk.parseCommit(remoteRef.getObjectId());
+			boolean ahead, behind;
+			try {
+				ahead = revWalk.isMergedInto(remoteCommit, localCommit);
+				behind = revWalk.isMergedInto(localCommit, remoteCommit);
+			}
+			finally {
+				// the walker is shared with the rest of the scan
+				revWalk.reset();
+			}
+			// we have local commits that are not remote yet
+			if (ahead) {
+				return;
+			}
+			else if (!behind) {
+				throw new IllegalStateException("Branch '" + branchName + "' has diverged from '" + remote + "', can not fast forward");
+			}
+		}
+		logger.info("Fast forwarding branch '" + branchName + "' to " + remoteRef.getObjectId().name());
+		RefUpdate update = repository.updateRef(Constants.R_HEADS + branchName);
+		update.setNewObjectId(remoteRef.getObjectId());
+		update.setExpectedOldObjectId(localRef == null ? ObjectId.zeroId() : localRef.getObjectId());
+		update.setRefLogMessage("fast forward from " + remote, false);
+		RefUpdate.Result result = update.update(revWalk);
+		if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NEW) {
+			throw new IllegalStateException("Could not fast forward branch '" + branchName + "': " + result);
+		}
+		refsChanged();
+	}
+	
 	// here we check specifically for version tags in the form of "v1", "v2" etc
 	// there is no concept of a minor version at this point
 	// the upside is, we only build releases on specific versions, which makes it easy to link the release back to the manual action of "releasing" it
 	// the downside is, you need to explicitly tag to kickstart the process
 	synchronized public List<GitRelease> checkForVersionUpdates() {
+		return checkForVersionUpdates(getCredentials());
+	}
+	
+	synchronized public List<GitRelease> checkForVersionUpdates(CredentialsProvider credentials) {
 		List<GitRelease> newVersions = new ArrayList<GitRelease>();
 		
 		logger.info("Checking for new versions for project: " + projectName);
@@ -486,22 +629,25 @@ public class GitRepository implements AutoCloseable {
 				// unless we specify fast forward mode, a merge commit will always be generated, even if empty
 				// FF tries to do a fast forward if possible, other options are FF_ONLY (don't merge if it can't be forwarded) and NO_FF (always generate commit)
 				// we use FF_ONLY, there should _not_ be local commits on this branch that are not pushed to the core (?)
-				PullResult call = authenticate(git.pull()).setRemoteBranchName(branch).setTagOpt(TagOpt.FETCH_TAGS).setFastForward(FastForwardMode.FF_ONLY).setRemote(remote).call();
+				PullResult call = authenticate(git.pull(), credentials).setRemoteBranchName(branch).setTagOpt(TagOpt.FETCH_TAGS).setFastForward(FastForwardMode.FF_ONLY).setRemote(remote).call();
 				if (call.getMergeResult().getConflicts() != null && !call.getMergeResult().getConflicts().isEmpty()) {
 					throw new RuntimeException("Merge conflicts detected: " + call);
 				}
 			}
+			// the pull may have brought in new tags
+			refsChanged();
+			refreshModel();
 			// get the last version
-			GitRelease lastVersion = getLastVersion();
-			// get the tags
-			for (Ref tag : getTags()) {
+			GitRelease lastVersion = getLastVersion(getModel());
+			// get the version tags
+			for (Ref tag : refs.getVersionTags()) {
 				String name = tag.getName().replaceAll("^.*/([^/]+$)", "$1");
 				// if you push multiple versions and one fails, we don't want to block the other ones
 				// we don't particularly care which order the versions are processed in, we use the correct starting point for the branch
 				// because they are created at the same time, they will all look at the latest data to merge, so it doesn't make a difference in which order
 				try {
-					if (name.matches("^v[0-9]+$")) {
-						int tagVersion = Integer.parseInt(name.substring(1));
+					int tagVersion = GitRefs.getVersion(tag);
+					if (tagVersion >= 0) {
 						RevCommit commit = getCommit(tag);
 						if (lastVersion == null) {
 							logger.info("No last version yet, starting from last version " + name + " with commit " + commit);
@@ -514,7 +660,7 @@ public class GitRepository implements AutoCloseable {
 							GitRelease newVersion = new GitRelease(tagVersion);
 							String newBranchName = "r" + tagVersion;
 							logger.info("Found a new version on branch '" + branch + "', creating release '" + newBranchName + "'");
-							getVersions().add(newVersion);
+							getModel().add(newVersion);
 							
 							try {
 								logger.info("Attempting checkout of already existing branch: " + newBranchName);
@@ -525,6 +671,8 @@ public class GitRepository implements AutoCloseable {
 								logger.info("Branch " + newBranchName + " does not exist yet, creating a new release branch for " + name);
 								// we create the new branch
 								Ref call = git.branchCreate().setStartPoint(commit).setName(newBranchName).call();
+								refsChanged();
+								buildRefs.add(call.getName());
 								newVersion.setRevCommit(commit);
 								
 								// we want to upstream the rx branch (if relevant) to allow for easy hotfixing
@@ -534,7 +682,7 @@ public class GitRepository implements AutoCloseable {
 									// pull the latest data
 									RefSpec refSpec = new RefSpec("refs/heads/" + newBranchName);
 									logger.info("Pushing branch '" + newBranchName + "' to '" + remote + "'");
-									authenticate(git.push()).setRefSpecs(refSpec).setRemote(remote).call();
+									authenticate(git.push(), credentials).setRefSpecs(refSpec).setRemote(remote).call();
 								}
 							}
 							
@@ -552,6 +700,9 @@ public class GitRepository implements AutoCloseable {
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			pushBuild(credentials);
+		}
 		return newVersions;
 	}
 	
@@ -561,6 +712,10 @@ public class GitRepository implements AutoCloseable {
 	// the potential downside is that it might become hard to validate exactly which commit is being used
 	// the upside is that you don't need to do anything special, just push to the master branch and you are set
 	synchronized public List<GitRelease> checkForAnyPrimaryUpdates() {
+		return checkForAnyPrimaryUpdates(getCredentials());
+	}
+	
+	synchronized public List<GitRelease> checkForAnyPrimaryUpdates(CredentialsProvider credentials) {
 		List<GitRelease> newVersions = new ArrayList<GitRelease>();
 		
 		logger.info("Checking for main updates for project: " + projectName);
@@ -573,24 +728,25 @@ public class GitRepository implements AutoCloseable {
 			if (remote != null) {
 				// pull the latest data
 				logger.info("Pulling last data for branch '" + branch + "' from '" + remote + "'");
-				PullResult call = authenticate(git.pull()).setFastForward(FastForwardMode.FF_ONLY).setRemoteBranchName(branch).setRemote(remote).call();
+				PullResult call = authenticate(git.pull(), credentials).setFastForward(FastForwardMode.FF_ONLY).setRemoteBranchName(branch).setRemote(remote).call();
 				if (call.getMergeResult().getConflicts() != null && !call.getMergeResult().getConflicts().isEmpty()) {
 					throw new RuntimeException("Merge conflicts detected: " + call);
 				}
 			}
+			refreshModel();
 			
 			RevCommit lastCommitOn = getLastCommitOn(branch);
 			// need at least 1 commit
 			if (lastCommitOn != null) {
 				// check it against the last version
-				GitRelease lastVersion = getLastVersion();
+				GitRelease lastVersion = getLastVersion(getModel());
 				// if no version or the last commit is beyond that version, we need a new version
 				if (lastVersion == null || lastVersion.getDate().before(GitUtils.getCommitDate(lastCommitOn))) {
 					GitRelease newVersion = new GitRelease(lastVersion == null ? 1 : lastVersion.getVersion() + 1);
 					String newBranchName = "r" + newVersion.getVersion();
 					logger.info("Found a new commit on branch '" + branch + "', creating release '" + newBranchName + "'");
 					
-					getVersions().add(newVersion);
+					getModel().add(newVersion);
 					
 					// first we try to check out the branch
 					// for shared repos, someone else may have already created the release branch
@@ -603,6 +759,8 @@ public class GitRepository implements AutoCloseable {
 						logger.info("Branch " + newBranchName + " does not exist yet, creating a new release branch");
 						// we create the new branch
 						Ref call = git.branchCreate().setName(newBranchName).setStartPoint(lastCommitOn).call();
+						refsChanged();
+						buildRefs.add(call.getName());
 						newVersion.setRevCommit(getCommit(call));
 						
 						// we want to upstream the rx branch (if relevant) to allow for easy hotfixing
@@ -611,7 +769,7 @@ public class GitRepository implements AutoCloseable {
 						if (remote != null) {
 							RefSpec refSpec = new RefSpec("refs/heads/" + newBranchName);
 							logger.info("Pushing branch '" + newBranchName + "' to '" + remote + "'");
-							authenticate(git.push()).setRefSpecs(refSpec).setRemote(remote).call();
+							authenticate(git.push(), credentials).setRefSpecs(refSpec).setRemote(remote).call();
 						}
 					}
 					
@@ -624,6 +782,9 @@ public class GitRepository implements AutoCloseable {
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			pushBuild(credentials);
+		}
 		return newVersions;
 	}
 
@@ -632,19 +793,22 @@ public class GitRepository implements AutoCloseable {
 		GitPatch patch = new GitPatch(newVersion, patchVersion);
 		// immediately create a fix version 0 branch
 		Ref call = git.branchCreate().setName(patch.getBranch()).call();
+		refsChanged();
+		buildRefs.add(call.getName());
 		patch.setRevCommit(getCommit(call));
 		
 		logger.info("Created patch version version '" + patch.getBranch() + "'");
 		
 		// if we started a new patch version, we have to look at the previous release to find the environments
+		Map<GitEnvironment, GitEnvironment> merges = new LinkedHashMap<GitEnvironment, GitEnvironment>();
 		if (patchVersion == 0) {
-			GitRelease previousVersion = getVersions().lower(newVersion);
+			GitRelease previousVersion = getModel().lower(newVersion);
 			// if we have a previous version, go with that
 			if (previousVersion != null) {
 				GitPatch lastPatch = previousVersion.getLastPatch();
 				if (lastPatch != null) {
 					for (GitEnvironment environment : lastPatch.getEnvironments()) {
-						createEnvironmentBranch(newVersion, patch, environment.getName(), environment);
+						merges.put(createEnvironmentBranch(newVersion, patch, environment.getName()), environment);
 					}
 				}
 			}
@@ -654,35 +818,36 @@ public class GitRepository implements AutoCloseable {
 			GitPatch lastPatch = newVersion.getLastPatch();
 			if (lastPatch != null) {
 				for (GitEnvironment environment : lastPatch.getEnvironments()) {
-					createEnvironmentBranch(newVersion, patch, environment.getName(), environment);
+					merges.put(createEnvironmentBranch(newVersion, patch, environment.getName()), environment);
 				}
 			}
 		}
+		if (!merges.isEmpty()) {
+			merge(merges);
+		}
 		newVersion.getPatchVersions().add(patch);
 		// back to the original one
 		git.checkout().setName(branch).call();
 		return patch;
 	}
 	
-	// we create an environment branch with a given name
-	// if there is an original, we use that to merge data
-	synchronized private void createEnvironmentBranch(GitRelease release, GitPatch patch, String name, GitEnvironment original) {
+	// we create an environment branch with a given name, it is up to the caller to merge it
+	synchronized private GitEnvironment createEnvironmentBranch(GitRelease release, GitPatch patch, String name) {
 		String branchName = "r" + release.getVersion() + "." + patch.getPatch();
 		try {
-			// go to the correct branch
-			git.checkout().setName(branchName).call();
 			// create the branch for the environment
 			String environmentBranch = branchName + "-" + name;
-			// create a new branch for the environment
-			Ref call = git.branchCreate().setName(environmentBranch).call();
+			// create a new branch for the environment, starting from the patch branch, no need to check it out
+			Ref call = git.branchCreate().setName(environmentBranch).setStartPoint(branchName).call();
+			refsChanged();
+			buildRefs.add(call.getName());
 			
 			logger.info("Created new environment '" + environmentBranch + "'");
 			
 			GitEnvironment environment = new GitEnvironment(patch, name);
 			environment.setRevCommit(getCommit(call));
 			patch.getEnvironments().add(environment);
-			
-			merge(environment, original);
+			return environment;
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -761,46 +926,28 @@ public class GitRepository implements AutoCloseable {
 	}
 	
 	synchronized public void setMergeResult(String branch, MergeResult result) {
+		setMergeResult(branch, result, getCredentials());
+	}
+	
+	synchronized public void setMergeResult(String branch, MergeResult result, CredentialsProvider credentials) {
 		try {
-			try {
-				git.checkout().setName(branch).call();
-				File file = new File(folder, "merge-result.xml");
-				if (result == null) {
-					if (file.exists()) {
-						file.delete();
-					}
-				}
-				else {
-					XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(MergeResult.class), Charset.forName("UTF-8"));
-					binding.setPrettyPrint(true);
-					try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
-						binding.marshal(output, new BeanInstance<MergeResult>(encrypt(result)));
-					}
-				}
-				// we need to immediately merge this result, otherwise we can't checkout other branches
-				GitEnvironment environment = getEnvironment(getVersions(), branch);
-				merge(environment);
-			}
-			// if we have an exception, reset the changes, otherwise we can't switch branches!
-			catch (Exception e) {
-				logger.error("Could not merge result", e);
-				git.reset().call();
-				throw e;
-			}
-			finally {
-				git.checkout().setName(this.branch).call();
-			}
+			refreshModel();
+			// we need to immediately merge this result, without a result we start from a clean slate
+			GitEnvironment environment = getEnvironment(getModel(), branch);
+			merge(environment, result == null ? new MergeResult() : encrypt(result));
+			pushBuild(credentials);
 		}
 		catch (Exception e) {
+			logger.error("Could not merge result", e);
 			throw new RuntimeException(e);
 		}
 	}
 	
-	synchronized private void merge(GitEnvironment current) {
+	synchronized private void merge(GitEnvironment current, MergeResult initial) {
 		GitEnvironment previous = null;
 		if (current.getPatch().getPatch() == 0) {
 			GitRelease release = current.getPatch().getRelease();
-			GitRelease lower = getVersions().lower(release);
+			GitRelease lower = getModel().lower(release);
 			if (lower != null) {
 				GitPatch lastPatch = lower.getLastPatch();
 				if (lastPatch != null) {
@@ -824,59 +971,343 @@ public class GitRepository implements AutoCloseable {
 				}
 			}
 		}
-		merge(current, previous);
+		merge(current, previous, initial);
+	}
+	
+	// the name of the release candidate (if no rc is given, the last one), null if the environment has no release candidates yet
+	private String getReleaseCandidateName(NavigableSet<GitRelease> versions, String branch, Integer rc) {
+		String fullName = branch + "-RC";
+		// if no rc is provided, we want the latest
+		if (rc == null) {
+			GitEnvironment environment = getEnvironment(versions, branch);
+			GitReleaseCandidate lastReleaseCandidate = environment.getLastReleaseCandidate();
+			if (lastReleaseCandidate == null) {
+				return null;
+			}
+			fullName += lastReleaseCandidate.getCandidate();
+		}
+		else {
+			fullName += rc;
+		}
+		return fullName;
+	}
+	
+	// the prezipped file for a release candidate (if we have a zip folder)
+	private File getZipFile(NavigableSet<GitRelease> versions, String branch, Integer rc, boolean includeRoot) {
+		String name = artifacts == null ? null : getReleaseCandidateName(versions, branch, rc);
+		return name == null ? null : artifacts.get(name, includeRoot);
 	}
 	
-	// you can specify a certain release candidate on the branch
-	synchronized public byte[] getAsZip(String branch, Integer rc, boolean includeRoot) {
+	// this does not touch the working directory and does not wait for running operations, it returns null if we have no prezipped version
+	public byte[] getCachedZip(String branch, Integer rc) {
+		File zipFile = getZipFile(getVersions(), branch, rc, false);
+		if (zipFile == null || !artifacts.pin(zipFile)) {
+			return null;
+		}
 		try {
-			try {
-				File zipFile = null;
-				
-				if (zipFolder != null) {
-					String fullName = branch + "-RC";
-					// if no rc is provided, we want the latest
-					if (rc == null) {
-						GitEnvironment environment = getEnvironment(getVersions(), branch);
-						GitReleaseCandidate lastReleaseCandidate = environment.getLastReleaseCandidate();
-						fullName += lastReleaseCandidate.getCandidate();
-					}
-					else {
-						fullName += rc;
-					}
-					zipFile = new File(zipFolder, fullName + ".zip");
-					if (zipFile.exists()) {
-						try (InputStream input = new BufferedInputStream(new FileInputStream(zipFile))) {
-							return IOUtils.toBytes(IOUtils.wrap(input));
-						}
+			return read(zipFile);
+		}
+		finally {
+			release(zipFile);
+		}
+	}
+	
+	// a stream on the prezipped file, null if there is none
+	public InputStream getCachedZipStream(String branch, Integer rc) throws IOException {
+		File zipFile = getZipFile(getVersions(), branch, rc, false);
+		return zipFile == null || !artifacts.pin(zipFile) ? null : open(zipFile, 0, zipFile.length());
+	}
+	
+	// for large projects you should prefer the streaming variants
+	public byte[] getAsZip(String branch, Integer rc, boolean includeRoot) {
+		File zip = getZip(branch, rc, includeRoot);
+		try {
+			return read(zip);
+		}
+		finally {
+			release(zip);
+		}
+	}
+	
+	// the zip is read from a file, either the prezipped one or a temporary one that is removed once the stream is closed
+	public InputStream getAsZipStream(String branch, Integer rc, boolean includeRoot) throws IOException {
+		File zip = getZip(branch, rc, includeRoot);
+		return open(zip, 0, zip.length());
+	}
+	
+	// a part of the zip, the range uses the http syntax (e.g. "bytes=1024-") so an interrupted download can be resumed
+	// the zips are reproducible, so this works even if the zip is not cached and is rebuilt for every request
+	public GitArtifactRange getZipRange(String branch, Integer rc, boolean includeRoot, String range) throws IOException {
+		File zip = getZip(branch, rc, includeRoot);
+		try {
+			GitArtifactRange result = newRange(zip, range);
+			result.setContent(open(zip, result.getOffset(), result.getLength()));
+			return result;
+		}
+		catch (RuntimeException e) {
+			release(zip);
+			throw e;
+		}
+	}
+	
+	// a package with only what changed between two release candidates or branches, the files that were added or modified are included as is
+	// the manifest (delta.xml) at the root of the zip lists what was added, modified and deleted so the deployment side knows what to remove
+	public InputStream getDeltaAsZipStream(String fromBranch, Integer fromRc, String toBranch, Integer toRc, boolean includeRoot) {
+		String from = fromRc == null ? fromBranch : fromBranch + "-RC" + fromRc;
+		String to = toRc == null ? toBranch : toBranch + "-RC" + toRc;
+		ObjectId fromId = resolve(from);
+		if (fromId == null) {
+			throw new IllegalArgumentException("Could not find: " + from);
+		}
+		ObjectId toId = resolve(to);
+		if (toId == null) {
+			throw new IllegalArgumentException("Could not find: " + to);
+		}
+		try (ObjectReader reader = git.getRepository().newObjectReader(); RevWalk revWalk = new RevWalk(reader); TreeWalk treeWalk = new TreeWalk(reader)) {
+			RevCommit fromCommit = revWalk.parseCommit(fromId);
+			RevCommit toCommit = revWalk.parseCommit(toId);
+			treeWalk.addTree(fromCommit.getTree());
+			treeWalk.addTree(toCommit.getTree());
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(TreeFilter.ANY_DIFF);
+			
+			DeltaInformation delta = new DeltaInformation();
+			delta.setFrom(from);
+			delta.setTo(to);
+			delta.setFromCommit(fromCommit.getName());
+			delta.setToCommit(toCommit.getName());
+			String prefix = includeRoot ? folder.getName() + "/" : "";
+			List<GitZipWriter.Entry> entries = new ArrayList<GitZipWriter.Entry>();
+			for (DiffEntry diff : DiffEntry.scan(treeWalk)) {
+				if (diff.getChangeType() == DiffEntry.ChangeType.DELETE) {
+					if (diff.getOldMode().getObjectType() == Constants.OBJ_BLOB && !diff.getOldPath().equals("merge-result.xml")) {
+						delta.getDeleted().add(diff.getOldPath());
 					}
 				}
-				
-				// we can checkout the tag rather than the branch?
-				git.checkout().setName(rc == null ? branch : branch + "-RC" + rc).call();
-				ByteBuffer newByteBuffer = IOUtils.newByteBuffer();
-				try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(IOUtils.toOutputStream(newByteBuffer)))) {
-					ResourceUtils.zip(new FileDirectory(null, folder, false), zipOutputStream, includeRoot, new Predicate<Resource>() {
-						@Override
-						public boolean test(Resource t) {
-							if (t.getName().equals("merge-result.xml")) {
-								return false;
-							}
-							return true;
-						}
-					});
+				// without rename detection everything else is either an add or a modify
+				else if (diff.getNewMode().getObjectType() == Constants.OBJ_BLOB && !diff.getNewPath().equals("merge-result.xml")) {
+					(diff.getChangeType() == DiffEntry.ChangeType.ADD ? delta.getAdded() : delta.getModified()).add(diff.getNewPath());
+					ObjectId blob = diff.getNewId().toObjectId();
+					entries.add(new GitZipWriter.Entry(prefix + diff.getNewPath(), blob, reader.getObjectSize(blob, Constants.OBJ_BLOB)));
+				}
+			}
+			XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(DeltaInformation.class), Charset.forName("UTF-8"));
+			binding.setPrettyPrint(true);
+			ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+			binding.marshal(manifest, new BeanInstance<DeltaInformation>(delta));
+			entries.add(0, new GitZipWriter.Entry("delta.xml", manifest.toByteArray()));
+			
+			// deltas are small and there are many possible combinations, they are not cached
+			final File temporary = File.createTempFile("nabu-delta-", ".zip");
+			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+				zip(git.getRepository(), entries, GitUtils.getCommitDate(toCommit).getTime(), output, from + ".." + to);
+			}
+			catch (Exception e) {
+				temporary.delete();
+				throw e;
+			}
+			logger.info("Created delta " + from + ".." + to + ": " + delta.getAdded().size() + " added, " + delta.getModified().size() + " modified, " + delta.getDeleted().size() + " deleted");
+			return open(temporary, 0, temporary.length());
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// the paths, blob ids and hashes of what is in the zip, this allows deployers to skip the files they already have
+	// we never build a zip for this: the manifest is written along with the zip, if we don't have it we calculate it from the tree
+	public GitArtifactManifest getManifest(String branch, Integer rc, boolean includeRoot) {
+		String name = rc == null ? branch : branch + "-RC" + rc;
+		ObjectId objectId = resolve(name);
+		if (objectId == null) {
+			throw new IllegalArgumentException("Could not find: " + name);
+		}
+		String prefix = includeRoot ? folder.getName() + "/" : "";
+		try (ObjectReader reader = git.getRepository().newObjectReader(); RevWalk revWalk = new RevWalk(reader); TreeWalk treeWalk = new TreeWalk(reader)) {
+			RevTree tree = revWalk.parseCommit(objectId).getTree();
+			// without an rc the cached zip is that of the last release candidate, the branch may have moved on since
+			String candidate = artifacts == null ? null : getReleaseCandidateName(getVersions(), branch, rc);
+			if (candidate != null) {
+				GitArtifactManifest cached = artifacts.getManifest(candidate, includeRoot);
+				if (cached != null && tree.getName().equals(cached.getTree())) {
+					return cached;
+				}
+			}
+			GitArtifactManifest manifest = new GitArtifactManifest();
+			manifest.setTree(tree.getName());
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[65536];
+			treeWalk.addTree(tree);
+			treeWalk.setRecursive(true);
+			while (treeWalk.next()) {
+				if (treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB || treeWalk.getPathString().equals("merge-result.xml")) {
+					continue;
 				}
-				byte[] bytes = IOUtils.toBytes(newByteBuffer);
-				// if we have the zip file target but no content yet, store it for future use
-				if (zipFile != null) {
-					try (OutputStream output = new BufferedOutputStream(new FileOutputStream(zipFile))) {
-						output.write(bytes);
+				ObjectLoader loader = reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB);
+				try (InputStream input = loader.openStream()) {
+					int read;
+					while ((read = input.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
 					}
 				}
-				return bytes;
+				GitArtifactEntry entry = new GitArtifactEntry();
+				entry.setPath(prefix + treeWalk.getPathString());
+				entry.setBlob(treeWalk.getObjectId(0).name());
+				entry.setHash(GitZipWriter.toHex(digest.digest()));
+				entry.setSize(loader.getSize());
+				manifest.getEntries().add(entry);
 			}
-			finally {
-				git.checkout().setName(this.branch).call();
+			return manifest;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private GitArtifactRange newRange(File zip, String range) {
+		long[] bounds = GitUtils.getRange(range, zip.length());
+		GitArtifactRange result = new GitArtifactRange();
+		result.setOffset(bounds[0]);
+		result.setLength(bounds[1]);
+		result.setSize(zip.length());
+		return result;
+	}
+	
+	// a stream on a part of the file, a temporary file is removed once the stream is closed
+	// the zip is released when the stream is closed
+	private InputStream open(final File zip, long offset, final long length) throws IOException {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(zip.toPath(), StandardOpenOption.READ);
+			channel.position(offset);
+		}
+		catch (IOException e) {
+			if (channel != null) {
+				channel.close();
+			}
+			release(zip);
+			throw e;
+		}
+		return new BufferedInputStream(new FilterInputStream(Channels.newInputStream(channel)) {
+			private long remaining = length;
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int read = super.read();
+				if (read >= 0) {
+					remaining--;
+				}
+				return read;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				int read = super.read(b, off, (int) Math.min(len, remaining));
+				if (read > 0) {
+					remaining -= read;
+				}
+				return read;
+			}
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(super.available(), remaining);
+			}
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				}
+				finally {
+					release(zip);
+				}
+			}
+		});
+	}
+	
+	// write the zip to the given output, the output is not closed
+	public void writeZip(String branch, Integer rc, boolean includeRoot, OutputStream output) throws IOException {
+		writeZip(branch, rc, includeRoot, null, output);
+	}
+	
+	// write (a range of) the zip to the given output, the file is transferred by the channel so it does not pass through the heap
+	// this returns the range that was written, without content
+	public GitArtifactRange writeZip(String branch, Integer rc, boolean includeRoot, String range, OutputStream output) throws IOException {
+		File zip = getZip(branch, rc, includeRoot);
+		try (FileChannel channel = FileChannel.open(zip.toPath(), StandardOpenOption.READ)) {
+			GitArtifactRange result = newRange(zip, range);
+			WritableByteChannel target = output instanceof FileOutputStream ? ((FileOutputStream) output).getChannel() : Channels.newChannel(output);
+			long position = result.getOffset();
+			long end = result.getOffset() + result.getLength();
+			while (position < end) {
+				position += channel.transferTo(position, end - position, target);
+			}
+			output.flush();
+			return result;
+		}
+		finally {
+			release(zip);
+		}
+	}
+	
+	// every zip we get from getZip must be released once we are done with it: a cached one is unpinned, a temporary one is removed
+	private void release(File zip) {
+		if (artifacts != null && artifacts.contains(zip)) {
+			artifacts.release(zip);
+		}
+		else {
+			zip.delete();
+		}
+	}
+	
+	// the zip always ends up in a file so we never hold it in memory: the prezipped file if we have a zip folder, otherwise a temporary file
+	// it is built from the tree in the object database, so this does not touch the working directory and can run next to a build
+	// a cached zip is pinned so it is not evicted while we use it
+	// without an rc we serve the last release candidate if there is one, the branch tip if there is not
+	private File getZip(String branch, Integer rc, final boolean includeRoot) {
+		try {
+			String candidate = artifacts == null ? null : getReleaseCandidateName(getVersions(), branch, rc);
+			File zipFile = candidate == null ? null : artifacts.get(candidate, includeRoot);
+			if (zipFile != null && artifacts.pin(zipFile)) {
+				return zipFile;
+			}
+			String name = candidate != null ? candidate : (rc == null ? branch : branch + "-RC" + rc);
+			ObjectId objectId = resolve(name);
+			if (objectId == null) {
+				throw new IllegalArgumentException("Could not find: " + name);
+			}
+			try (ObjectReader reader = git.getRepository().newObjectReader(); RevWalk revWalk = new RevWalk(reader)) {
+				// this peels the tag
+				RevCommit commit = revWalk.parseCommit(objectId);
+				final RevTree tree = commit.getTree();
+				final long time = GitUtils.getCommitDate(commit).getTime();
+				// if we have a zip folder but no content yet, store it for future use
+				// if it is already being prezipped in the background we wait for that
+				if (candidate != null) {
+					File zip = GitArtifactQueue.getInstance().get(artifacts, candidate, includeRoot, newZipWriter(tree, time, includeRoot));
+					if (artifacts.pin(zip)) {
+						return zip;
+					}
+					// it was evicted before we could pin it (e.g. it is bigger than the cache), we build a temporary one
+				}
+				File temporary = File.createTempFile("nabu-zip-", ".zip");
+				try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+					zip(git.getRepository(), reader, tree, time, output, includeRoot);
+				}
+				catch (Exception e) {
+					temporary.delete();
+					throw e;
+				}
+				return temporary;
 			}
 		}
 		catch (Exception e) {
@@ -884,27 +1315,138 @@ public class GitRepository implements AutoCloseable {
 		}
 	}
 	
-	// every method that performs a checkout, needs a lock to do so
-	synchronized private void merge(GitEnvironment current, GitEnvironment previous) {
+	// the initial result (if any) replaces the merge result currently on the branch
+	synchronized private void merge(GitEnvironment current, GitEnvironment previous, MergeResult initial) {
+		logMerge(current, previous);
+		if (isObjectMerge(current)) {
+			mergeObjects(current, previous, initial);
+		}
+		else {
+			mergeWorktree(current, previous, initial);
+		}
+	}
+	
+	/**
+	 * Merge multiple environments (mapped to the environment they should be merged from, if any).
+	 * In object mode they don't share a working directory so we merge them in parallel and apply all the resulting branches and tags in one go at the end.
+	 * If any of them fails or does not finish in time, none of them are applied.
+	 * Environments that have the checked out branch, or any merge in worktree mode, are merged one after the other.
+	 */
+	private void merge(Map<GitEnvironment, GitEnvironment> merges) {
+		boolean parallel = merges.size() > 1 && mergeThreads > 1;
+		for (GitEnvironment current : merges.keySet()) {
+			parallel &= isObjectMerge(current);
+		}
+		if (!parallel) {
+			for (Map.Entry<GitEnvironment, GitEnvironment> merge : merges.entrySet()) {
+				merge(merge.getKey(), merge.getValue(), null);
+			}
+			return;
+		}
+		List<Callable<PendingMerge>> tasks = new ArrayList<Callable<PendingMerge>>();
+		for (final Map.Entry<GitEnvironment, GitEnvironment> merge : merges.entrySet()) {
+			tasks.add(new Callable<PendingMerge>() {
+				@Override
+				public PendingMerge call() throws Exception {
+					logMerge(merge.getKey(), merge.getValue());
+					return prepareMerge(merge.getKey(), merge.getValue(), null);
+				}
+			});
+		}
+		// a pool of our own so we never wait on the merges of other repositories, the callers hold the lock on this repository while we wait
+		// a merge that is still running after the timeout only leaves unreferenced objects behind, the refs are only updated when we apply
+		ExecutorService executor = newMergeExecutor(Math.min(mergeThreads, merges.size()));
+		List<Future<PendingMerge>> futures;
 		try {
-			if (previous == null) {
-				logger.info("Merging environment '" + current.getBranch() + "'");
+			futures = executor.invokeAll(tasks, mergeTimeout, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while merging, none of the environments were applied", e);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		List<PendingMerge> pending = new ArrayList<PendingMerge>();
+		Exception exception = null;
+		for (Future<PendingMerge> future : futures) {
+			try {
+				pending.add(future.get());
 			}
-			else {
-				logger.info("Merging environment '" + current.getBranch() + "' from '" + previous.getBranch() + "'");
+			catch (CancellationException e) {
+				logger.error("Merging timed out after " + mergeTimeout + " minutes");
+				if (exception == null) {
+					exception = new TimeoutException("Merging timed out after " + mergeTimeout + " minutes");
+				}
 			}
-			
+			catch (Exception e) {
+				logger.error("Merging failed", e);
+				if (exception == null) {
+					exception = e;
+				}
+			}
+		}
+		if (exception != null) {
+			throw new RuntimeException("Could not merge all environments, none of them were applied", exception);
+		}
+		try {
+			applyMerges(pending);
+		}
+		catch (Exception e) {
+			logger.error("Merging failed", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private void logMerge(GitEnvironment current, GitEnvironment previous) {
+		if (previous == null) {
+			logger.info("Merging environment '" + current.getBranch() + "'");
+		}
+		else {
+			logger.info("Merging environment '" + current.getBranch() + "' from '" + previous.getBranch() + "'");
+		}
+	}
+	
+	// we can't update the ref of the branch that is checked out without updating the working directory as well
+	private boolean isObjectMerge(GitEnvironment current) {
+		return "object".equals(mergeMode) && !current.getBranch().equals(getCheckedOutBranch());
+	}
+	
+	private ExecutorService newMergeExecutor(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "git-merge-" + projectName + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	private String getCheckedOutBranch() {
+		try {
+			return git.getRepository().getBranch();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// every method that performs a checkout, needs a lock to do so
+	synchronized private void mergeWorktree(GitEnvironment current, GitEnvironment previous, MergeResult initial) {
+		try {
 			// switch to that branch
 			git.checkout().setName(current.getBranch()).call();
 			
-			MergeResult result = null;
+			MergeResult result = initial;
 			// we check if there is a parameter file
 			File file = new File(folder, "merge-result.xml");
 			XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(MergeResult.class), Charset.forName("UTF-8"));
 			binding.setPrettyPrint(true);
 			
 			// if we have a file, load it
-			if (file.exists()) {
+			if (result == null && file.exists()) {
 				try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
 					result = TypeUtils.getAsBean(binding.unmarshal(input, new Window[0]), MergeResult.class);
 				}
@@ -927,27 +1469,12 @@ public class GitRepository implements AutoCloseable {
 			
 			GitMethods methods = new GitMethods(this, result, previousResult, previousCommit);
 			
-			EAIResourceRepository instance = EAIResourceRepository.getInstance();
-			GlueParserProvider parserProvider = new GlueParserProvider(new ServiceMethodProvider(instance, instance), new StaticJavaMethodProvider(methods));
-			
-			DynamicScriptRepository repository = new DynamicScriptRepository(parserProvider);
-			
 			SimpleExecutionEnvironment environment = new SimpleExecutionEnvironment("default");
 			Map<URI, String> resolved = new HashMap<URI, String>();
 			List<GitNode> nodes = new ArrayList<GitNode>();
-			merge(folder, projectName, repository, methods, resolved, environment, nodes);
+			merge(folder, projectName, newScriptRepository(methods), methods, resolved, environment, nodes);
 			
-			MergeState state = MergeState.SUCCEEDED;
-			if (result.getEntries() != null) {
-				for (MergeEntry entry : result.getEntries()) {
-					if (!MergeState.SUCCEEDED.equals(entry.getState())) {
-						// we don't do "ERROR" here, anything that is not finished (either due to error or pending) is considered pending
-						state = MergeState.PENDING;
-						break;
-					}
-				}
-			}
-			result.setState(state);
+			result.setState(getState(result));
 			result.setStopped(new Date());
 			// write the merge result
 			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
@@ -964,15 +1491,7 @@ public class GitRepository implements AutoCloseable {
 			XMLBinding buildBinding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(BuildInformation.class), Charset.forName("UTF-8"));
 			buildBinding.setPrettyPrint(true);
 			File buildFile = new File(folder, "build.xml");
-			// if we don't have a merge result available, create a new one
-			BuildInformation build = new BuildInformation();
-			build.setBuilt(new Date());
-			build.setTag(fullName);
-			build.setRelease(current.getPatch().getRelease().getVersion());
-			build.setPatch(current.getPatch().getPatch());
-			build.setEnvironment(current.getName());
-			build.setRc(candidateVersion);
-			build.setDependencies(calculateDependencies(nodes));
+			BuildInformation build = newBuildInformation(current, fullName, candidateVersion, nodes);
 			// write the merge result
 			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(buildFile))) {
 				buildBinding.marshal(output, new BeanInstance<BuildInformation>(build));
@@ -980,40 +1499,22 @@ public class GitRepository implements AutoCloseable {
 			
 			// commit the resulting branch
 			git.add().addFilepattern(".").call();
-			git.commit().setAll(true).setMessage("Merged for RC" + candidateVersion).call();
+			RevCommit merged = git.commit().setAll(true).setMessage("Merged for RC" + candidateVersion).call();
 			Ref call = git.tag().setName(fullName).call();
+			refsChanged();
+			buildRefs.add(Constants.R_HEADS + current.getBranch());
+			buildRefs.add(call.getName());
 			GitReleaseCandidate rc = new GitReleaseCandidate(call.getName(), candidateVersion);
 			rc.setRevCommit(getCommit(call));
 			current.getReleaseCandidates().add(rc);
 			logger.info("Created release candidate '" + fullName + "'");
 			
 			if (zipFolder != null) {
-				File targetZip = new File(zipFolder, fullName + ".zip");
-				try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(targetZip)))) {
-					ResourceUtils.zip(new FileDirectory(null, folder, false), zipOutputStream, false, new Predicate<Resource>() {
-						@Override
-						public boolean test(Resource t) {
-							if (t.getName().equals("merge-result.xml")) {
-								return false;
-							}
-							return true;
-						}
-					});
-				}
-				logger.info("Created zip '" + targetZip + "'");
+				prezip(fullName, merged.getTree(), rc.getTime());
 			}
 			
 			// switch back to the main branch
 			git.checkout().setName(branch).call();
-			
-			// push it remotely if possible
-			List<RemoteConfig> remoteCall = git.remoteList().call();
-			for (RemoteConfig config : remoteCall) {
-				if (remoteBuild.equals(config.getName())) {
-					// we also push ze tags!
-					authenticate(git.push()).setPushAll().setPushTags().setRemote(remoteBuild).call();
-				}
-			}
 		}
 		catch (Exception e) {
 			logger.error("Merging failed", e);
@@ -1031,16 +1532,315 @@ public class GitRepository implements AutoCloseable {
 		}
 	}
 	
-	private List<String> calculateDependencies(List<GitNode> nodes) {
-		List<String> inBuild = new ArrayList<String>();
-		for (GitNode node : nodes) {
-			inBuild.add(node.getId());
+	// the same as the worktree merge but we work from the commit in the object database and write the result straight back to it, the working directory is not touched
+	synchronized private void mergeObjects(GitEnvironment current, GitEnvironment previous, MergeResult initial) {
+		try {
+			applyMerges(Arrays.asList(prepareMerge(current, previous, initial)));
 		}
-		List<String> dependencies = new ArrayList<String>();
-		for (GitNode node : nodes) {
-			if (node.getReferences() != null) {
-				for (String reference : node.getReferences()) {
-					if (!dependencies.contains(reference) && !inBuild.contains(reference)) {
+		catch (Exception e) {
+			logger.error("Merging failed", e);
+			throw new RuntimeException(e);
+		}
+	}
+	
+	// this writes the objects for the merged environment but does not update any refs yet
+	// it does not modify shared state (apart from the object database), so environments can be prepared in parallel
+	private PendingMerge prepareMerge(GitEnvironment current, GitEnvironment previous, MergeResult initial) throws Exception {
+		Repository repository = git.getRepository();
+		try (ObjectInserter inserter = repository.newObjectInserter(); ObjectReader reader = inserter.newReader(); RevWalk revWalk = new RevWalk(reader)) {
+			String branchName = Constants.R_HEADS + current.getBranch();
+			Ref branchRef = repository.exactRef(branchName);
+			if (branchRef == null) {
+				throw new IllegalStateException("Could not find branch: " + branchName);
+			}
+			RevCommit base = revWalk.parseCommit(branchRef.getObjectId());
+			GitTreeOverlay overlay = new GitTreeOverlay(reader, base.getTree());
+			
+			XMLBinding binding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(MergeResult.class), Charset.forName("UTF-8"));
+			binding.setPrettyPrint(true);
+			MergeResult result = initial;
+			if (result == null) {
+				byte[] existing = overlay.read("merge-result.xml");
+				if (existing != null) {
+					result = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(existing), new Window[0]), MergeResult.class);
+				}
+			}
+			if (result == null) {
+				result = new MergeResult();
+			}
+			result.setStarted(new Date());
+			
+			RevCommit previousCommit = previous == null ? null : getLastCommitOn(previous.getBranch());
+			MergeResult previousResult = null;
+			if (previousCommit != null) {
+				byte[] read = read("merge-result.xml", previousCommit);
+				if (read != null) {
+					previousResult = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(read), new Window[0]), MergeResult.class);
+				}
+			}
+			
+			GitMethods methods = new GitMethods(this, result, previousResult, previousCommit);
+			methods.setOverlay(overlay);
+			
+			SimpleExecutionEnvironment environment = new SimpleExecutionEnvironment("default");
+			Map<URI, String> resolved = new HashMap<URI, String>();
+			List<GitNode> nodes = new ArrayList<GitNode>();
+			merge(overlay, "", projectName, newScriptRepository(methods), methods, resolved, environment, nodes);
+			
+			result.setState(getState(result));
+			result.setStopped(new Date());
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			binding.marshal(output, new BeanInstance<MergeResult>(result));
+			overlay.write("merge-result.xml", output.toByteArray());
+			
+			GitReleaseCandidate previousRc = current.getLastReleaseCandidate();
+			int candidateVersion = previousRc == null ? 1 : previousRc.getCandidate() + 1;
+			String fullName = current.getBranch() + "-RC" + candidateVersion;
+			
+			XMLBinding buildBinding = new XMLBinding((ComplexType) BeanResolver.getInstance().resolve(BuildInformation.class), Charset.forName("UTF-8"));
+			buildBinding.setPrettyPrint(true);
+			output = new ByteArrayOutputStream();
+			buildBinding.marshal(output, new BeanInstance<BuildInformation>(newBuildInformation(current, fullName, candidateVersion, nodes)));
+			overlay.write("build.xml", output.toByteArray());
+			
+			// write the tree, the commit and the tag
+			ObjectId tree = overlay.writeTree(inserter);
+			PersonIdent ident = new PersonIdent(repository);
+			CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(tree);
+			commit.setParentId(base);
+			commit.setAuthor(ident);
+			commit.setCommitter(ident);
+			commit.setMessage("Merged for RC" + candidateVersion);
+			ObjectId commitId = inserter.insert(commit);
+			TagBuilder tag = new TagBuilder();
+			tag.setObjectId(commitId, Constants.OBJ_COMMIT);
+			tag.setTag(fullName);
+			tag.setTagger(ident);
+			ObjectId tagId = inserter.insert(tag);
+			inserter.flush();
+			
+			PendingMerge pending = new PendingMerge();
+			pending.environment = current;
+			pending.tag = fullName;
+			pending.candidate = candidateVersion;
+			pending.tree = tree;
+			pending.commit = commitId;
+			pending.commands.add(new ReceiveCommand(base, commitId, branchName, ReceiveCommand.Type.UPDATE));
+			pending.commands.add(new ReceiveCommand(ObjectId.zeroId(), tagId, Constants.R_TAGS + fullName, ReceiveCommand.Type.CREATE));
+			return pending;
+		}
+	}
+	
+	// move all the branches and create all the tags in one go, then update the model and prezip
+	synchronized private void applyMerges(List<PendingMerge> merges) throws IOException {
+		Repository repository = git.getRepository();
+		try (RevWalk revWalk = new RevWalk(repository)) {
+			BatchRefUpdate update = repository.getRefDatabase().newBatchUpdate();
+			update.setAtomic(repository.getRefDatabase().performsAtomicTransactions());
+			update.setRefLogIdent(new PersonIdent(repository));
+			update.setRefLogMessage("merged", false);
+			for (PendingMerge merge : merges) {
+				update.addCommand(merge.commands);
+			}
+			update.execute(revWalk, NullProgressMonitor.INSTANCE);
+			refsChanged();
+			for (ReceiveCommand command : update.getCommands()) {
+				if (command.getResult() != ReceiveCommand.Result.OK) {
+					throw new IllegalStateException("Could not update '" + command.getRefName() + "': " + command.getResult() + (command.getMessage() == null ? "" : " (" + command.getMessage() + ")"));
+				}
+				buildRefs.add(command.getRefName());
+			}
+			for (PendingMerge merge : merges) {
+				GitReleaseCandidate rc = new GitReleaseCandidate(Constants.R_TAGS + merge.tag, merge.candidate);
+				rc.setRevCommit(revWalk.parseCommit(merge.commit));
+				merge.environment.getReleaseCandidates().add(rc);
+				merge.time = rc.getTime();
+				logger.info("Created release candidate '" + merge.tag + "'");
+			}
+		}
+		if (zipFolder != null) {
+			for (PendingMerge merge : merges) {
+				prezip(merge.tag, merge.tree, merge.time);
+			}
+		}
+	}
+	
+	private static class PendingMerge {
+		private GitEnvironment environment;
+		private String tag;
+		private int candidate;
+		private long time;
+		private ObjectId tree, commit;
+		private List<ReceiveCommand> commands = new ArrayList<ReceiveCommand>();
+	}
+	
+	// the zip for a release candidate is written in the background, anyone who needs the zip before it is done waits for it
+	private Future<File> prezip(String fullName, AnyObjectId tree, long time) throws IOException {
+		return GitArtifactQueue.getInstance().submit(artifacts, fullName, false, newZipWriter(tree, time, false));
+	}
+	
+	// the writer runs on the queue, by then this instance may have been closed (e.g. evicted from the registry) so it opens its own repository
+	private GitArtifactCache.ZipWriter newZipWriter(final AnyObjectId tree, final long time, final boolean includeRoot) {
+		final File gitFolder = git.getRepository().getDirectory();
+		return new GitArtifactCache.ZipWriter() {
+			@Override
+			public GitArtifactManifest write(OutputStream output) throws IOException {
+				try (Repository repository = new FileRepositoryBuilder().setGitDir(gitFolder).setMustExist(true).build(); ObjectReader reader = repository.newObjectReader()) {
+					return zip(repository, reader, tree, time, output, includeRoot);
+				}
+			}
+		};
+	}
+	
+	// zip the tree as it is in the object database, the merge result is for internal use only and is not exposed
+	// the entries are compressed in parallel, they all get the commit time so the same commit always results in the same zip
+	private GitArtifactManifest zip(Repository repository, ObjectReader reader, AnyObjectId tree, long time, OutputStream output, boolean includeRoot) throws IOException {
+		String prefix = includeRoot ? folder.getName() + "/" : "";
+		List<GitZipWriter.Entry> entries = new ArrayList<GitZipWriter.Entry>();
+		try (TreeWalk treeWalk = new TreeWalk(reader)) {
+			treeWalk.addTree(tree);
+			treeWalk.setRecursive(true);
+			while (treeWalk.next()) {
+				if (treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB || treeWalk.getPathString().equals("merge-result.xml")) {
+					continue;
+				}
+				entries.add(new GitZipWriter.Entry(prefix + treeWalk.getPathString(), treeWalk.getObjectId(0), reader.getObjectSize(treeWalk.getObjectId(0), Constants.OBJ_BLOB)));
+			}
+		}
+		GitArtifactManifest manifest = zip(repository, entries, time, output, "tree " + tree.getName());
+		manifest.setTree(tree.getName());
+		return manifest;
+	}
+	
+	private GitArtifactManifest zip(Repository repository, List<GitZipWriter.Entry> entries, long time, OutputStream output, String description) throws IOException {
+		GitZipWriter writer = new GitZipWriter(repository);
+		if (time != Long.MIN_VALUE) {
+			writer.setTime(time);
+		}
+		GitZipWriter.Statistics statistics = writer.write(entries, output);
+		logger.info("Zipped " + description + ": " + statistics.getEntries() + " entries, " + statistics.getSize() + " -> " + statistics.getCompressedSize() + " bytes (ratio " + String.format("%.2f", statistics.getRatio()) + ") in " + statistics.getDuration() + "ms, compression took " + statistics.getCompressionTime() + "ms");
+		return writer.getManifest();
+	}
+	
+	// push everything this build cycle created or moved to the build remote in one go
+	// if the remote can't be reached, the refs are retained and we try again at the end of the next cycle
+	// if the remote rejects them, trying again will not help so we drop them
+	synchronized private void pushBuild(CredentialsProvider credentials) {
+		if (buildRefs.isEmpty()) {
+			return;
+		}
+		try {
+			boolean configured = false;
+			for (RemoteConfig config : git.remoteList().call()) {
+				if (remoteBuild.equals(config.getName())) {
+					configured = true;
+					break;
+				}
+			}
+			if (configured) {
+				List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+				for (String ref : buildRefs) {
+					refSpecs.add(new RefSpec(ref + ":" + ref));
+				}
+				long started = System.currentTimeMillis();
+				Iterable<PushResult> results;
+				try {
+					results = authenticate(git.push(), credentials).setRefSpecs(refSpecs).setAtomic(atomicPush).setRemote(remoteBuild).call();
+				}
+				catch (TransportException e) {
+					if (!atomicPush || !isAtomicNotSupported(e)) {
+						throw e;
+					}
+					logger.warn("The build remote '" + remoteBuild + "' does not support atomic pushes, pushing the refs one by one");
+					atomicPush = false;
+					results = authenticate(git.push(), credentials).setRefSpecs(refSpecs).setAtomic(false).setRemote(remoteBuild).call();
+				}
+				int updated = 0;
+				List<String> rejected = new ArrayList<String>();
+				for (PushResult result : results) {
+					for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+						if (update.getStatus() == RemoteRefUpdate.Status.OK) {
+							updated++;
+						}
+						else if (update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+							rejected.add(update.getRemoteName() + ": " + update.getStatus() + (update.getMessage() == null ? "" : " (" + update.getMessage() + ")"));
+						}
+					}
+				}
+				if (!rejected.isEmpty()) {
+					logger.error("The build remote '" + remoteBuild + "' rejected " + rejected.size() + " of " + refSpecs.size() + " refs, they will not be pushed again until they change: " + rejected);
+				}
+				logger.info("Pushed " + refSpecs.size() + " refs (" + updated + " updated) to '" + remoteBuild + "' in " + (System.currentTimeMillis() - started) + "ms");
+			}
+			buildRefs.clear();
+		}
+		catch (Exception e) {
+			logger.error("Could not push " + buildRefs.size() + " refs to '" + remoteBuild + "'", e);
+			// if the remote stays down, we don't want to keep an ever growing list around
+			if (buildRefs.size() > maxBuildRefs) {
+				Iterator<String> iterator = buildRefs.iterator();
+				for (int i = buildRefs.size() - maxBuildRefs; i > 0; i--) {
+					iterator.next();
+					iterator.remove();
+				}
+				logger.warn("Dropped the oldest refs for '" + remoteBuild + "', retaining " + buildRefs.size());
+			}
+		}
+	}
+	
+	// jgit checks the advertised capabilities of the remote before sending anything
+	private static boolean isAtomicNotSupported(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof org.eclipse.jgit.errors.TransportException && throwable.getMessage() != null && throwable.getMessage().endsWith(GitInternals.getAtomicPushNotSupported())) {
+				return true;
+			}
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+	
+	private DynamicScriptRepository newScriptRepository(GitMethods methods) {
+		EAIResourceRepository instance = EAIResourceRepository.getInstance();
+		GlueParserProvider parserProvider = new GlueParserProvider(new ServiceMethodProvider(instance, instance), new StaticJavaMethodProvider(methods));
+		return new DynamicScriptRepository(parserProvider);
+	}
+	
+	private static MergeState getState(MergeResult result) {
+		if (result.getEntries() != null) {
+			for (MergeEntry entry : result.getEntries()) {
+				if (!MergeState.SUCCEEDED.equals(entry.getState())) {
+					// we don't do "ERROR" here, anything that is not finished (either due to error or pending) is considered pending
+					return MergeState.PENDING;
+				}
+			}
+		}
+		return MergeState.SUCCEEDED;
+	}
+	
+	// the build information is a rather static file, specifically aimed at informing the end-user of which version the resulting zip is
+	private BuildInformation newBuildInformation(GitEnvironment current, String fullName, int candidateVersion, List<GitNode> nodes) {
+		BuildInformation build = new BuildInformation();
+		build.setBuilt(new Date());
+		build.setTag(fullName);
+		build.setRelease(current.getPatch().getRelease().getVersion());
+		build.setPatch(current.getPatch().getPatch());
+		build.setEnvironment(current.getName());
+		build.setRc(candidateVersion);
+		build.setDependencies(calculateDependencies(nodes));
+		return build;
+	}
+	
+	private List<String> calculateDependencies(List<GitNode> nodes) {
+		List<String> inBuild = new ArrayList<String>();
+		for (GitNode node : nodes) {
+			inBuild.add(node.getId());
+		}
+		List<String> dependencies = new ArrayList<String>();
+		for (GitNode node : nodes) {
+			if (node.getReferences() != null) {
+				for (String reference : node.getReferences()) {
+					if (!dependencies.contains(reference) && !inBuild.contains(reference)) {
 						dependencies.add(reference);
 					}
 				}
@@ -1049,15 +1849,20 @@ public class GitRepository implements AutoCloseable {
 		return dependencies;
 	}
 	
-	private JAXBContext nodeContext;
+	private volatile JAXBContext nodeContext;
 	
+	// merges of different environments run in parallel, we can't synchronize on the repository itself as it is held while they run
 	private JAXBContext getNodeContext() {
 		if (nodeContext == null) {
-			try {
-				nodeContext = JAXBContext.newInstance(GitNode.class);
-			}
-			catch (Exception e) {
-				throw new RuntimeException(e);
+			synchronized(GitNode.class) {
+				if (nodeContext == null) {
+					try {
+						nodeContext = JAXBContext.newInstance(GitNode.class);
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
 			}
 		}
 		return nodeContext;
@@ -1072,134 +1877,10 @@ public class GitRepository implements AutoCloseable {
 				GitNode node = (GitNode) getNodeContext().createUnmarshaller().unmarshal(nodeFile);
 				node.setId(path);
 				nodes.add(node);
-				String mergeScript = node.getMergeScript();
-				
-				if (mergeScript == null) {
-					mergeScript = getStandardMergeScript(node, resolved);
-				}
-				
+				String mergeScript = getMergeScript(node, resolved);
 				// if we have a merge script, get cracking
-				if (mergeScript != null && !mergeScript.trim().isEmpty()) {
-					logger.info("Merging entry '" + path + "'");
-					
-					// we set the current path as the entry id
-					methods.setCurrentEntryId(path);
-					// get the merge entry
-					MergeEntry merged = methods.merged();
-					// always set to pending before we begin
-					merged.setState(MergeState.PENDING);
-					// set the latest metadata from the node
-					merged.setNode(node);
-					
-					StringBuilder scriptLogger = new StringBuilder();
-					try {
-						// we initially assume it was not changed
-						merged.setChanged(false);
-						
-						// get the previous version of the node.xml
-						byte[] previous = methods.previousContent("node.xml");
-						// compare the node properties to see if it was changed
-						if (previous != null) {
-							GitNode previousNode = (GitNode) getNodeContext().createUnmarshaller().unmarshal(new ByteArrayInputStream(previous));
-							if (!previousNode.getLastModified().equals(node.getLastModified()) || !previousNode.getEnvironmentId().equals(node.getEnvironmentId()) || previousNode.getVersion() != node.getVersion()) {
-								merged.setChanged(true);
-							}
-						}
-						// if it did not exist before, it is definitely a change
-						else {
-							merged.setChanged(true);
-						}
-						
-						Script script;
-						// if we detect a URL, we load it in remotely
-						if (mergeScript.trim().matches("^[\\w]+://.*$")) {
-							script = getScript(repository, new URI(URIUtils.encodeURI(mergeScript)), resolved);
-						}
-						else {
-							script = new DynamicScript(
-								path.indexOf('.') > 0 ? path.replaceAll("^(.*)\\.[^.]+$", "$1") : null,
-								path.indexOf('.') > 0 ? path.replaceAll("^.*\\.([^.]+)$", "$1") : path,
-								repository,
-								Charset.forName("UTF-8"),
-								null
-							);
-							((DynamicScript) script).setContent(mergeScript);
-						}
-						
-						ScriptRuntime runtime = new ScriptRuntime(
-							script, 
-							environment,
-							false, 
-							null
-						);
-						// make sure the execution directory is correct
-						runtime.getContext().put(SystemMethodProvider.CLI_DIRECTORY, folder.getAbsolutePath());
-						runtime.setFormatter(new OutputFormatter() {
-							@Override
-							public void validated(GlueValidation... validations) {
-								// nothing
-							}
-							@Override
-							public void start(Script script) {
-								// nothing								
-							}
-							@Override
-							public boolean shouldExecute(Executor executor) {
-								return true;
-							}
-							@Override
-							public void print(Object... messages) {
-								if (messages != null) {
-									for (Object message : messages) {
-										if (message != null) {
-											scriptLogger.append(message).append("\n");
-										}
-									}
-								}
-							}
-							@Override
-							public void end(Script script, Date started, Date stopped, Exception exception) {
-								// nothing								
-							}
-							@Override
-							public void before(Executor executor) {
-								// nothing								
-							}
-							@Override
-							public void after(Executor executor) {
-								// nothing
-							}
-						});
-						// run the merge script
-						runtime.run();
-						
-						// the parameter-based change detection is more accurate
-						// even if you changed something in the node, it might not affect the parameters
-						// we'll try it like this and change it back if needed
-						boolean parametersChanged = false;
-						for (MergeParameter parameter : merged.getParameters()) {
-							if (parameter.isChanged()) {
-								parametersChanged = true;
-								break;
-							}
-						}
-						merged.setChanged(parametersChanged);
-						
-						merged.setState(MergeState.SUCCEEDED);
-					}
-					catch (Exception e) {
-						logger.error("Could not merge: " + path, e);
-						StringWriter stringWriter = new StringWriter();
-						PrintWriter printer = new PrintWriter(stringWriter);
-						e.printStackTrace(printer);
-						printer.flush();
-						merged.setErrorLog(stringWriter.toString());
-						merged.setState(MergeState.FAILED);
-					}
-					// always set the script log, it might help in debugging
-					finally {
-						merged.setLog(scriptLogger.toString());
-					}
+				if (mergeScript != null) {
+					merge(node, path, mergeScript, folder, repository, methods, resolved, environment);
 				}
 			}
 			catch (Exception e) {
@@ -1218,6 +1899,189 @@ public class GitRepository implements AutoCloseable {
 		}
 	}
 	
+	// the same as above but working on the tree in the object database, the directory is relative to the root of the repository
+	private void merge(GitTreeOverlay overlay, String directory, String path, DynamicScriptRepository repository, GitMethods methods, Map<URI, String> resolved, ExecutionEnvironment environment, List<GitNode> nodes) {
+		byte[] nodeContent = overlay.read(getChildPath(directory, "node.xml"));
+		if (nodeContent != null) {
+			try {
+				GitNode node = (GitNode) getNodeContext().createUnmarshaller().unmarshal(new ByteArrayInputStream(nodeContent));
+				node.setId(path);
+				nodes.add(node);
+				String mergeScript = getMergeScript(node, resolved);
+				if (mergeScript != null) {
+					// the scripts work relative to a directory, by default they get a temporary copy of the node folder
+					File folder = Files.createTempDirectory("nabu-merge-").toFile();
+					try {
+						Map<String, byte[]> materialized = materialize ? overlay.materialize(directory, folder) : new HashMap<String, byte[]>();
+						merge(node, path, mergeScript, folder, repository, methods, resolved, environment);
+						overlay.collect(directory, folder, materialized);
+					}
+					finally {
+						delete(folder);
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.error("Could not merge: " + path, e);
+				throw new RuntimeException(e);
+			}
+		}
+		else {
+			for (String child : overlay.getDirectories(directory)) {
+				if (EAIResourceRepository.isValidName(child)) {
+					merge(overlay, getChildPath(directory, child), (path == null ? "" : path + ".") + child, repository, methods, resolved, environment, nodes);
+				}
+			}
+		}
+	}
+	
+	private static String getChildPath(String directory, String name) {
+		return directory.isEmpty() ? name : directory + "/" + name;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	// the explicit merge script of the node or the standard one for its artifact type, null if there is nothing to merge
+	private String getMergeScript(GitNode node, Map<URI, String> resolved) {
+		String mergeScript = node.getMergeScript();
+		if (mergeScript == null) {
+			mergeScript = getStandardMergeScript(node, resolved);
+		}
+		return mergeScript == null || mergeScript.trim().isEmpty() ? null : mergeScript;
+	}
+	
+	// run the merge script of a single node, the folder is the execution directory of the script
+	private void merge(GitNode node, String path, String mergeScript, File folder, DynamicScriptRepository repository, GitMethods methods, Map<URI, String> resolved, ExecutionEnvironment environment) throws Exception {
+		logger.info("Merging entry '" + path + "'");
+		
+		// we set the current path as the entry id
+		methods.setCurrentEntryId(path);
+		// get the merge entry
+		MergeEntry merged = methods.merged();
+		// always set to pending before we begin
+		merged.setState(MergeState.PENDING);
+		// set the latest metadata from the node
+		merged.setNode(node);
+		
+		StringBuilder scriptLogger = new StringBuilder();
+		try {
+			// we initially assume it was not changed
+			merged.setChanged(false);
+			
+			// get the previous version of the node.xml
+			byte[] previous = methods.previousContent("node.xml");
+			// compare the node properties to see if it was changed
+			if (previous != null) {
+				GitNode previousNode = (GitNode) getNodeContext().createUnmarshaller().unmarshal(new ByteArrayInputStream(previous));
+				if (!previousNode.getLastModified().equals(node.getLastModified()) || !previousNode.getEnvironmentId().equals(node.getEnvironmentId()) || previousNode.getVersion() != node.getVersion()) {
+					merged.setChanged(true);
+				}
+			}
+			// if it did not exist before, it is definitely a change
+			else {
+				merged.setChanged(true);
+			}
+			
+			Script script;
+			// if we detect a URL, we load it in remotely
+			if (mergeScript.trim().matches("^[\\w]+://.*$")) {
+				script = getScript(repository, new URI(URIUtils.encodeURI(mergeScript)), resolved);
+			}
+			else {
+				script = new DynamicScript(
+					path.indexOf('.') > 0 ? path.replaceAll("^(.*)\\.[^.]+$", "$1") : null,
+					path.indexOf('.') > 0 ? path.replaceAll("^.*\\.([^.]+)$", "$1") : path,
+					repository,
+					Charset.forName("UTF-8"),
+					null
+				);
+				((DynamicScript) script).setContent(mergeScript);
+			}
+			
+			ScriptRuntime runtime = new ScriptRuntime(
+				script, 
+				environment,
+				false, 
+				null
+			);
+			// make sure the execution directory is correct
+			runtime.getContext().put(SystemMethodProvider.CLI_DIRECTORY, folder.getAbsolutePath());
+			runtime.setFormatter(new OutputFormatter() {
+				@Override
+				public void validated(GlueValidation... validations) {
+					// nothing
+				}
+				@Override
+				public void start(Script script) {
+					// nothing								
+				}
+				@Override
+				public boolean shouldExecute(Executor executor) {
+					return true;
+				}
+				@Override
+				public void print(Object... messages) {
+					if (messages != null) {
+						for (Object message : messages) {
+							if (message != null) {
+								scriptLogger.append(message).append("\n");
+							}
+						}
+					}
+				}
+				@Override
+				public void end(Script script, Date started, Date stopped, Exception exception) {
+					// nothing								
+				}
+				@Override
+				public void before(Executor executor) {
+					// nothing								
+				}
+				@Override
+				public void after(Executor executor) {
+					// nothing
+				}
+			});
+			// run the merge script
+			runtime.run();
+			
+			// the parameter-based change detection is more accurate
+			// even if you changed something in the node, it might not affect the parameters
+			// we'll try it like this and change it back if needed
+			boolean parametersChanged = false;
+			for (MergeParameter parameter : merged.getParameters()) {
+				if (parameter.isChanged()) {
+					parametersChanged = true;
+					break;
+				}
+			}
+			merged.setChanged(parametersChanged);
+			
+			merged.setState(MergeState.SUCCEEDED);
+		}
+		catch (Exception e) {
+			logger.error("Could not merge: " + path, e);
+			StringWriter stringWriter = new StringWriter();
+			PrintWriter printer = new PrintWriter(stringWriter);
+			e.printStackTrace(printer);
+			printer.flush();
+			merged.setErrorLog(stringWriter.toString());
+			merged.setState(MergeState.FAILED);
+		}
+		// always set the script log, it might help in debugging
+		finally {
+			merged.setLog(scriptLogger.toString());
+		}
+	}
+	
 //	private static String standardEndpoint = System.getProperty("git.merge.endpoint", "https://my.nabu.be/resources/merge");
 	private static String standardEndpoint = System.getProperty("git.merge.endpoint", "https://raw.githubusercontent.com/nabu-platform/merge-scripts/refs/heads/master/default");
 	
@@ -1272,11 +2136,10 @@ public class GitRepository implements AutoCloseable {
 		}
 	}
 	
+	// we know the size up front, so read it in one go
 	private static byte[] read(File file) {
 		try {
-			try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
-				return IOUtils.toBytes(IOUtils.wrap(input));
-			}
+			return Files.readAllBytes(file.toPath());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -1313,60 +2176,159 @@ public class GitRepository implements AutoCloseable {
 	 * That means a version on the master branch is r1, r2, r3...
 	 * 
 	 * You can create a patch version, e.g. r1.1. This is optional and done as a straight branch on r1 in this case.
+	 * 
+	 * The versions are shared by all readers so you can not modify them.
 	 */
-	public TreeSet<GitRelease> getVersions() {
-		if (versions == null) {
-			synchronized(this) {
-				if (versions == null) {
-					versions = new TreeSet<GitRelease>(new Comparator<GitRelease>() {
-						@Override
-						public int compare(GitRelease releaseA, GitRelease releaseB) {
-							return releaseA.getVersion() - releaseB.getVersion();
-						}
-					});
-					// by default this only gets local branches, not remote
-					// to include remote:
-					// new Git(repository).branchList().setListMode(ListMode.ALL).call();
-					for (Ref ref : getBranches()) {
-						String name = ref.getName();
-						// e.g. refs/heads/master
-						name = name.replaceAll("^.*/", "");
-						// an actual release version
-						if (name.matches("^r[0-9]+$")) {
-							GitRelease version = getVersion(versions, name);
-							version.setReference(ref.getName());
-							version.setRevCommit(getCommit(ref));
-						}
-						else if (name.matches("^r[0-9]+\\.[0-9]+$")) {
-							GitPatch patchVersion = getPatchVersion(versions, name);
-							patchVersion.setReference(ref.getName());
-							patchVersion.setRevCommit(getCommit(ref));
-						}
-						else if (name.matches("^r[0-9]+\\.[0-9]+-.+$")) {
-							GitEnvironment environment = getEnvironment(versions, name);
-							environment.setReference(ref.getName());
-							environment.setRevCommit(getCommit(ref));
-						}
-					}
-					for (Ref ref : getTags()) {
-						String name = ref.getName();
-						name = name.replaceAll("^.*/", "");
-						if (name.matches("^r[0-9]+\\.[0-9]+-.+-RC[0-9]+$")) {
-							GitEnvironment environment = getEnvironment(versions, name);
-							String rc = ref.getName().replaceAll(".*-RC([0-9]+)$", "$1");
-							GitReleaseCandidate releaseCandidate = new GitReleaseCandidate(ref.getName(), Integer.parseInt(rc));
-							releaseCandidate.setRevCommit(getCommit(ref));
-							environment.getReleaseCandidates().add(releaseCandidate);
-						}
-					}
+	public NavigableSet<GitRelease> getVersions() {
+		Versions current = snapshot;
+		if (current == null) {
+			synchronized(snapshotLock) {
+				current = snapshot;
+				if (current == null) {
+					current = buildVersions();
+					snapshot = current;
 				}
 			}
 		}
-		return versions;
+		return Collections.unmodifiableNavigableSet(current.releases);
+	}
+	
+	// the working model for the operations that hold the lock on this repository, they update it as they create new branches and tags
+	private TreeSet<GitRelease> getModel() {
+		if (model == null) {
+			Versions versions = buildVersions();
+			model = versions.releases;
+			modelFingerprint = versions.fingerprint;
+		}
+		return model;
+	}
+	
+	// at the start of an operation (or after a pull), make sure the working model still matches the refs
+	private void refreshModel() {
+		if (model != null) {
+			refs.invalidate();
+			if (!GitRefIndex.fingerprint(getReleaseRefs()).equals(modelFingerprint)) {
+				model = null;
+				modelFingerprint = null;
+			}
+		}
 	}
 	
-	private GitRelease getLastVersion() {
-		SortedSet<GitRelease> versions = getVersions();
+	// build the versions from the current state of the ref database
+	private Versions buildVersions() {
+		refs.invalidate();
+		GitReleaseModel model = new GitReleaseModel();
+		// by default this only gets local branches, not remote
+		// to include remote:
+		// new Git(repository).branchList().setListMode(ListMode.ALL).call();
+		List<Ref> releaseRefs = getReleaseRefs();
+		String fingerprint = GitRefIndex.fingerprint(releaseRefs);
+		Map<String, GitRefIndexEntry> entries = getIndexedRefs(releaseRefs, fingerprint);
+		// the branches come before the tags
+		for (Ref ref : releaseRefs) {
+			if (ref.getName().startsWith(Constants.R_TAGS)) {
+				// e.g. refs/tags/r1.0-qlty-RC1
+				GitReleaseCandidate releaseCandidate = model.addTag(ref.getName());
+				if (releaseCandidate != null) {
+					releaseCandidate.setCommitInformation(entries.get(ref.getName()));
+				}
+			}
+			else {
+				// e.g. refs/heads/r1, refs/heads/r1.0 or refs/heads/r1.0-qlty
+				GitReference reference = model.addBranch(ref.getName());
+				if (reference != null) {
+					reference.setCommitInformation(entries.get(ref.getName()));
+				}
+			}
+		}
+		return new Versions(fingerprint, model.getVersions());
+	}
+	
+	// we changed the refs ourselves: the cached lookups and the snapshot for readers are stale
+	private void refsChanged() {
+		refs.invalidate();
+		snapshot = null;
+	}
+	
+	/**
+	 * Checks whether the release refs have moved since the versions were built, if so the versions are rebuilt on next access.
+	 * This is meant for long lived instances, it only reads the release refs and does not parse any commits.
+	 */
+	public boolean refresh() {
+		Versions current = snapshot;
+		if (current == null) {
+			return false;
+		}
+		refs.invalidate();
+		if (!GitRefIndex.fingerprint(getReleaseRefs()).equals(current.fingerprint)) {
+			snapshot = null;
+			logger.debug("Release refs have changed for " + projectName + ", versions will be rebuilt");
+			return true;
+		}
+		return false;
+	}
+
+	private File getRefIndexFile() {
+		return new File(git.getRepository().getDirectory(), "nabu-refs.xml");
+	}
+	
+	// all the refs that are part of the release model
+	private List<Ref> getReleaseRefs() {
+		List<Ref> refs = new ArrayList<Ref>();
+		for (Ref ref : getBranches()) {
+			if (GitRefName.parse(ref.getName()) != null) {
+				refs.add(ref);
+			}
+		}
+		for (Ref ref : getTags()) {
+			if (GitRefName.parse(ref.getName()) != null) {
+				refs.add(ref);
+			}
+		}
+		return refs;
+	}
+
+	// the commit information for all release related refs, we only parse the commits for refs that moved since the index was last written
+	private Map<String, GitRefIndexEntry> getIndexedRefs(List<Ref> refs, String fingerprint) {
+		// readers and the running operation can both build versions, only one of them should write the index
+		synchronized(indexLock) {
+			return getIndexedRefs(refs, fingerprint, getRefIndexFile());
+		}
+	}
+	
+	private Map<String, GitRefIndexEntry> getIndexedRefs(List<Ref> refs, String fingerprint, File file) {
+		GitRefIndex index = GitRefIndex.load(file);
+		Map<String, GitRefIndexEntry> cached = index == null ? new HashMap<String, GitRefIndexEntry>() : index.getEntriesByReference();
+		Map<String, GitRefIndexEntry> entries = new HashMap<String, GitRefIndexEntry>();
+		// if the fingerprint matches, nothing has moved and we can use the index as is
+		if (index != null && fingerprint.equals(index.getFingerprint()) && cached.size() == refs.size()) {
+			return cached;
+		}
+		GitRefIndex updated = new GitRefIndex();
+		updated.setFingerprint(fingerprint);
+		int parsed = 0;
+		// one walker (and object reader) for all the refs that moved
+		try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+			for (Ref ref : refs) {
+				String target = ref.getObjectId().getName();
+				GitRefIndexEntry entry = cached.get(ref.getName());
+				if (entry == null || !target.equals(entry.getTarget())) {
+					entry = new GitRefIndexEntry(ref.getName(), target);
+					RevCommit commit = getCommit(revWalk, ref);
+					// note: we can't dispose the body here, another ref may point to the same (cached) commit
+					entry.setRevCommit(commit);
+					parsed++;
+				}
+				entries.put(ref.getName(), entry);
+				updated.getEntries().add(entry);
+			}
+		}
+		logger.debug("Updated ref index for " + projectName + ", parsed " + parsed + " of " + refs.size() + " refs");
+		updated.save(file);
+		return entries;
+	}
+
+	private static GitRelease getLastVersion(SortedSet<GitRelease> versions) {
 		return versions.isEmpty() ? null : versions.last();
 	}
 	
@@ -1385,86 +2347,73 @@ public class GitRepository implements AutoCloseable {
 	}
 	
 	// can use the full name like refs/heads/master or just "master"
-	private Iterable<RevCommit> getCommitsOn(String name) {
+	public RevCommit getLastCommitOn(String name) {
+		try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+			return getLastCommitOn(revWalk, name);
+		}
+	}
+	
+	// we only need the tip, so resolve the name and parse that commit, no need to set up a log
+	private RevCommit getLastCommitOn(RevWalk revWalk, String name) {
+		ObjectId objectId = resolve(name);
+		if (objectId == null) {
+			return null;
+		}
 		try {
-			return git.log().add(resolve(name)).call();
+			return revWalk.parseCommit(objectId);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
-	
-	public RevCommit getLastCommitOn(String name) {
-		Iterable<RevCommit> commitsOn = getCommitsOn(name);
-		Iterator<RevCommit> iterator = commitsOn.iterator();
-		if (iterator.hasNext()) {
-			return iterator.next();
-		}
-		return null;
-	}
 
-	// full name:
-	// r1.0-qlty
-	private static GitRelease getVersion(Collection<GitRelease> versions, String name) {
-		if (!name.matches("^r[0-9]+.*")) {
-			throw new IllegalArgumentException("Not a version: " + name);
-		}
-		name = name.replaceAll("^(r[0-9]+).*", "$1");
-		int version = Integer.parseInt(name.substring(1));
-		GitRelease existing = null;
-		for (GitRelease possible : versions) {
-			if (possible.getVersion() == version) {
-				existing = possible;
-				break;
-			}
-		}
-		if (existing == null) {
+	private static GitRelease getVersion(NavigableSet<GitRelease> versions, int version) {
+		// the set is sorted on the version so we can probe it directly
+		GitRelease existing = versions.floor(new GitRelease(version));
+		if (existing == null || existing.getVersion() != version) {
 			existing = new GitRelease(version);
 			versions.add(existing);
 		}
 		return existing;
 	}
 	
-	private static GitPatch getPatchVersion(Collection<GitRelease> versions, String name) {
-		if (!name.matches("^r[0-9]+\\.[0-9]+.*")) {
+	// full name:
+	// r1.0 or r1.0-qlty
+	private static GitPatch getPatchVersion(NavigableSet<GitRelease> versions, String name) {
+		GitRefName refName = GitRefName.parse(name);
+		if (refName == null || refName.getType() == GitRefName.Type.RELEASE) {
 			throw new IllegalArgumentException("Not a patch version: " + name);
 		}
-		name = name.replaceAll("^(r[0-9]+\\.[0-9]+).*", "$1");
-		String[] parts = name.split("\\.");
-		GitRelease release = getVersion(versions, name);
-		int patch = Integer.parseInt(parts[1]);
-		GitPatch existing = null;
-		for (GitPatch possible : release.getPatchVersions()) {
-			if (possible.getPatch() == patch) {
-				existing = possible;
-				break;
-			}
-		}
-		if (existing == null) {
+		return getPatchVersion(versions, refName.getRelease(), refName.getPatch());
+	}
+	
+	private static GitPatch getPatchVersion(NavigableSet<GitRelease> versions, int version, int patch) {
+		GitRelease release = getVersion(versions, version);
+		GitPatch existing = release.getPatchVersions().floor(new GitPatch(release, patch));
+		if (existing == null || existing.getPatch() != patch) {
 			existing = new GitPatch(release, patch);
 			release.getPatchVersions().add(existing);
 		}
 		return existing;
 	}
 	
-	private static GitEnvironment getEnvironment(Collection<GitRelease> versions, String name) {
-		if (!name.matches("^r[0-9]+\\.[0-9]+.*-.+")) {
+	// full name:
+	// r1.0-qlty or r1.0-qlty-RC2
+	private static GitEnvironment getEnvironment(NavigableSet<GitRelease> versions, String name) {
+		GitRefName refName = GitRefName.parse(name);
+		if (refName == null || refName.getEnvironment() == null) {
 			throw new IllegalArgumentException("Not an environment version: " + name);
 		}
-		// remove any mention of RC or final from the name
-		name = name.replaceAll("^(.*?)-(RC[0-9]+|FINAL)$", "$1");
-		GitPatch patchVersion = getPatchVersion(versions, name);
-		// anything after the first '-' is the name of the environment
-		String environment = name.substring(name.indexOf('-') + 1);
+		GitPatch patchVersion = getPatchVersion(versions, refName.getRelease(), refName.getPatch());
 		GitEnvironment existing = null;
 		for (GitEnvironment potential : patchVersion.getEnvironments()) {
-			if (potential.getName().equals(environment)) {
+			if (potential.getName().equals(refName.getEnvironment())) {
 				existing = potential;
 				break;
 			}
 		}
 		if (existing == null) {
-			existing = new GitEnvironment(patchVersion, environment);
+			existing = new GitEnvironment(patchVersion, refName.getEnvironment());
 			patchVersion.getEnvironments().add(existing);
 		}
 		return existing;
@@ -1472,56 +2421,51 @@ public class GitRepository implements AutoCloseable {
 	
 	private RevCommit getCommit(Ref ref) {
 		try (RevWalk revWalk = new RevWalk(git.getRepository())) {
-			RevCommit commit = revWalk.parseCommit(ref.getObjectId());
-			return commit;
+			return getCommit(revWalk, ref);
+		}
+	}
+	
+	private RevCommit getCommit(RevWalk revWalk, Ref ref) {
+		try {
+			// packed refs usually know their peeled id, which saves us from reading annotated tag objects
+			ObjectId objectId = ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+			return revWalk.parseCommit(objectId);
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 	
-	private Ref getBranch(String name) {
-		for (Ref ref : getBranches()) {
-			String branchName = ref.getName();
-			// e.g. refs/heads/master
-			branchName = branchName.replaceAll("^.*/", "");
-			if (branchName.equals(name)) {
-				return ref;
-			}
+	// the release model does not retain commits, if you need one it is parsed on demand
+	public RevCommit getCommit(GitReference reference) {
+		if (reference.getObjectId() == null) {
+			return null;
 		}
-		return null;
-	}
-	
-	private List<Ref> getBranches() {
-		try {
-			// this lists both local and remote branches, this means both refs/remotes and refs/heads
-			return git.branchList().setListMode(ListMode.ALL).call();
-			// this lists only local branches, especially when copying a build environment, they may reside only in remote branches
-//			return git.branchList().call();
+		try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+			return revWalk.parseCommit(reference.getObjectId());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	// e.g. "master", local branches take precedence over remote ones
+	private Ref getBranch(String name) {
+		return refs.getBranch(name);
+	}
+	
+	// this lists both local and remote branches, this means both refs/remotes and refs/heads
+	// we only need the ones that can be part of the release model
+	private List<Ref> getBranches() {
+		return refs.getReleaseBranches();
+	}
 	
 	private Ref getTag(String name) {
-		for (Ref tag : getTags()) {
-			String tagName = tag.getName().replaceAll("^.*/([^/]+$)", "$1");
-			if (tagName.equals(name)) {
-				return tag;
-			}
-		}
-		return null;
+		return refs.getTag(name);
 	}
 	
 	private List<Ref> getTags() {
-		try {
-			return git.tagList().call();
-//			return git.getRepository().getRefDatabase().getRefsByPrefix(Constants.R_TAGS);
-		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return refs.getReleaseTags();
 	}
 
 	public String getUsername() {
@@ -1544,6 +2488,14 @@ public class GitRepository implements AutoCloseable {
 	public void close() throws Exception {
 		git.close();
 	}
+	
+	public File getFolder() {
+		return folder;
+	}
+	
+	public String getProjectName() {
+		return projectName;
+	}
 
 	public File getZipFolder() {
 		return zipFolder;
@@ -1551,6 +2503,7 @@ public class GitRepository implements AutoCloseable {
 
 	public void setZipFolder(File zipFolder) {
 		this.zipFolder = zipFolder;
+		this.artifacts = zipFolder == null ? null : GitArtifactCache.getInstance(zipFolder);
 	}
 	
 }
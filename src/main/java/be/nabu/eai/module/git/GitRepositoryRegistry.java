@@ -0,0 +1,211 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps git repositories open across calls so we don't reopen the repository, recreate the JAXB context and rebuild the versions every time.
+ * Repositories are leased, only repositories that are not in use are evicted, either because they have been idle for too long or because we have too many open.
+ * When you acquire a repository that is already open, we check whether the release refs have moved since the versions were built.
+ * The same instance is handed to every caller, so it only carries state that is the same for all of them (like the zip folder), anything that differs per call (like credentials) is passed per operation.
+ * Idle repositories are also closed by a periodic sweep on the maintenance thread, so a server that stops receiving calls does not keep them open.
+ */
+public class GitRepositoryRegistry {
+	
+	private static volatile GitRepositoryRegistry instance;
+	
+	// how many repositories we keep open at most (unless they are all in use)
+	private int size = Integer.parseInt(System.getProperty("git.registry.size", "32"));
+	// how long (in ms) a repository can stay unused before it is closed
+	private long idle = Long.parseLong(System.getProperty("git.registry.idle", "" + (1000l * 60 * 10)));
+	// how often (in ms) we check for idle repositories
+	private long sweep = Long.parseLong(System.getProperty("git.registry.sweep", "" + (1000l * 60)));
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	// in access order, the eldest entry is the least recently used
+	private Map<String, Lease> repositories = new LinkedHashMap<String, Lease>(16, 0.75f, true);
+	// leases that were removed from the registry while still in use, they are closed by the last release
+	private Map<GitRepository, Lease> detached = new IdentityHashMap<GitRepository, Lease>();
+	
+	public static GitRepositoryRegistry getInstance() {
+		if (instance == null) {
+			synchronized(GitRepositoryRegistry.class) {
+				if (instance == null) {
+					GitRepositoryRegistry registry = new GitRepositoryRegistry();
+					registry.schedule();
+					instance = registry;
+				}
+			}
+		}
+		return instance;
+	}
+	
+	private static class Lease {
+		private GitRepository repository;
+		private int leases;
+		private long lastUsed = System.currentTimeMillis();
+		private Lease(GitRepository repository) {
+			this.repository = repository;
+		}
+	}
+	
+	private void schedule() {
+		if (sweep > 0) {
+			GitMaintenance.getInstance().schedule(new Runnable() {
+				@Override
+				public void run() {
+					sweep();
+				}
+			}, sweep);
+		}
+	}
+	
+	public GitRepository acquire(File folder, String projectName) {
+		return acquire(folder, projectName, null);
+	}
+	
+	/**
+	 * Get an open repository for the given folder, make sure you release it when you are done.
+	 * The zip folder is only set when the repository is opened, for a given folder it should always be the same.
+	 */
+	public GitRepository acquire(File folder, String projectName, File zipFolder) {
+		String key = GitUtils.getProjectKey(folder);
+		Lease lease;
+		boolean opened = false;
+		synchronized(this) {
+			lease = repositories.get(key);
+			// the repository was removed from under us (e.g. a reclone)
+			if (lease != null && !new File(lease.repository.getFolder(), ".git").exists()) {
+				repositories.remove(key);
+				detach(lease);
+				lease = null;
+			}
+			if (lease == null) {
+				GitRepository repository = new GitRepository(folder, projectName);
+				repository.setZipFolder(zipFolder);
+				lease = new Lease(repository);
+				repositories.put(key, lease);
+				opened = true;
+			}
+			lease.leases++;
+			lease.lastUsed = System.currentTimeMillis();
+			evict();
+		}
+		// outside of the registry lock, this only reads the refs
+		if (!opened) {
+			lease.repository.refresh();
+		}
+		return lease.repository;
+	}
+	
+	public void release(GitRepository repository) {
+		if (repository == null) {
+			return;
+		}
+		synchronized(this) {
+			Lease lease = repositories.get(GitUtils.getProjectKey(repository.getFolder()));
+			if (lease == null || lease.repository != repository) {
+				lease = detached.get(repository);
+				// not managed by us
+				if (lease == null) {
+					close(repository);
+				}
+				else if (--lease.leases <= 0) {
+					detached.remove(repository);
+					close(lease);
+				}
+			}
+			else {
+				lease.leases--;
+				lease.lastUsed = System.currentTimeMillis();
+			}
+			evict();
+		}
+	}
+	
+	/**
+	 * Remove the repository from the registry, it is closed as soon as nobody uses it anymore.
+	 */
+	public synchronized void evict(File folder) {
+		Lease lease = repositories.remove(GitUtils.getProjectKey(folder));
+		if (lease != null) {
+			detach(lease);
+		}
+	}
+	
+	// the lease is no longer handed out, if it is still in use the last release closes it
+	private void detach(Lease lease) {
+		if (lease.leases <= 0) {
+			close(lease);
+		}
+		else {
+			detached.put(lease.repository, lease);
+		}
+	}
+	
+	// close the repositories that are idle for too long
+	public synchronized void sweep() {
+		evict();
+	}
+	
+	public synchronized List<String> getOpenRepositories() {
+		return new ArrayList<String>(repositories.keySet());
+	}
+	
+	// must be called while holding the registry lock
+	private void evict() {
+		long now = System.currentTimeMillis();
+		int open = repositories.size();
+		Iterator<Lease> iterator = repositories.values().iterator();
+		while (iterator.hasNext()) {
+			Lease lease = iterator.next();
+			if (lease.leases > 0) {
+				continue;
+			}
+			// the least recently used come first
+			if (open > size || now - lease.lastUsed > idle) {
+				iterator.remove();
+				close(lease);
+				open--;
+			}
+		}
+	}
+	
+	private void close(Lease lease) {
+		close(lease.repository);
+	}
+	
+	private void close(GitRepository repository) {
+		try {
+			repository.close();
+		}
+		catch (Exception e) {
+			logger.warn("Could not close repository: " + repository.getFolder(), e);
+		}
+	}
+}
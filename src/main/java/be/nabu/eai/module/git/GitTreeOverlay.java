@@ -0,0 +1,302 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.git;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.ignore.IgnoreNode;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * An in-memory layer of changes on top of a commit tree.
+ * Reads see the changes first and fall back to the tree, nothing is written to the object database until you ask for the resulting tree.
+ * All paths are relative to the root of the repository and use "/" as separator, the root itself is the empty string.
+ */
+public class GitTreeOverlay {
+	
+	private ObjectReader reader;
+	private RevTree tree;
+	// the changed files, a null value means the file was deleted
+	private Map<String, byte[]> changes = new TreeMap<String, byte[]>();
+	
+	public GitTreeOverlay(ObjectReader reader, RevTree tree) {
+		this.reader = reader;
+		this.tree = tree;
+	}
+	
+	public byte[] read(String path) {
+		if (changes.containsKey(path)) {
+			return changes.get(path);
+		}
+		try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree)) {
+			if (treeWalk == null || treeWalk.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) {
+				return null;
+			}
+			return reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void write(String path, byte[] content) {
+		if (content == null) {
+			throw new IllegalArgumentException("No content to write to: " + path);
+		}
+		changes.put(path, content);
+	}
+	
+	public void delete(String path) {
+		changes.put(path, null);
+	}
+	
+	public boolean isChanged() {
+		return !changes.isEmpty();
+	}
+	
+	// the names of the directories directly within the given directory in the original tree
+	public List<String> getDirectories(String directory) {
+		List<String> directories = new ArrayList<String>();
+		int depth = getDepth(directory);
+		try (TreeWalk treeWalk = newTreeWalk(directory, false)) {
+			while (treeWalk.next()) {
+				// still on the way down to the directory itself
+				if (treeWalk.getDepth() < depth) {
+					if (treeWalk.isSubtree()) {
+						treeWalk.enterSubtree();
+					}
+				}
+				else if (treeWalk.getDepth() == depth && treeWalk.isSubtree()) {
+					directories.add(treeWalk.getNameString());
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return directories;
+	}
+	
+	// all the files within the given directory (recursively) as they currently are, relative to the directory
+	public Map<String, byte[]> getFiles(String directory) {
+		Map<String, byte[]> files = new TreeMap<String, byte[]>();
+		String prefix = directory.isEmpty() ? "" : directory + "/";
+		try (TreeWalk treeWalk = newTreeWalk(directory, true)) {
+			while (treeWalk.next()) {
+				if (treeWalk.getFileMode(0).getObjectType() == Constants.OBJ_BLOB && !changes.containsKey(treeWalk.getPathString())) {
+					files.put(treeWalk.getPathString().substring(prefix.length()), reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes());
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+			if (change.getValue() != null && change.getKey().startsWith(prefix)) {
+				files.put(change.getKey().substring(prefix.length()), change.getValue());
+			}
+		}
+		return files;
+	}
+	
+	// write the current content of a directory to the file system, for scripts that need a real directory to work with
+	// returns what was written so we can detect the changes afterwards
+	public Map<String, byte[]> materialize(String directory, File target) {
+		Map<String, byte[]> files = getFiles(directory);
+		try {
+			for (Map.Entry<String, byte[]> file : files.entrySet()) {
+				File child = new File(target, file.getKey());
+				child.getParentFile().mkdirs();
+				try (OutputStream output = new BufferedOutputStream(new FileOutputStream(child))) {
+					output.write(file.getValue());
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return files;
+	}
+	
+	// pick up the changes that were made on the file system compared to what was materialized
+	// files that were written directly to the overlay in the meantime are left alone unless they were also changed on the file system
+	// new files that the ignore rules of the repository exclude (e.g. build output) are not picked up, files that were materialized are never ignored
+	public void collect(String directory, File source, Map<String, byte[]> materialized) {
+		String prefix = directory.isEmpty() ? "" : directory + "/";
+		Map<String, byte[]> found = new HashMap<String, byte[]>();
+		try (TreeWalk treeWalk = new TreeWalk(reader)) {
+			// this only sees the .gitignore files within the folder, the ones in the parent directories are in the tree
+			treeWalk.addTree(new FileTreeIterator(source, FS.DETECTED, new Config().get(WorkingTreeOptions.KEY)));
+			Map<String, IgnoreNode> parents = getParentIgnoreRules(directory);
+			while (treeWalk.next()) {
+				FileTreeIterator iterator = treeWalk.getTree(0, FileTreeIterator.class);
+				String path = treeWalk.getPathString();
+				if (treeWalk.isSubtree()) {
+					if (!isIgnored(iterator, parents, directory, path, true) || isMaterialized(materialized, path + "/")) {
+						treeWalk.enterSubtree();
+					}
+				}
+				else if (materialized.containsKey(path) || !isIgnored(iterator, parents, directory, path, false)) {
+					found.put(path, Files.readAllBytes(iterator.getEntryFile().toPath()));
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (Map.Entry<String, byte[]> file : found.entrySet()) {
+			if (!Arrays.equals(file.getValue(), materialized.get(file.getKey()))) {
+				write(prefix + file.getKey(), file.getValue());
+			}
+		}
+		for (String path : materialized.keySet()) {
+			if (!found.containsKey(path)) {
+				delete(prefix + path);
+			}
+		}
+	}
+	
+	// the rules within the folder come first, then those of the parent directories from the closest to the root
+	private static boolean isIgnored(FileTreeIterator iterator, Map<String, IgnoreNode> parents, String directory, String path, boolean isDirectory) throws IOException {
+		if (iterator.isEntryIgnored()) {
+			return true;
+		}
+		for (Map.Entry<String, IgnoreNode> parent : parents.entrySet()) {
+			String relative = parent.getKey().isEmpty() ? directory : directory.substring(parent.getKey().length() + 1);
+			Boolean ignored = parent.getValue().checkIgnored(relative + "/" + path, isDirectory);
+			if (ignored != null) {
+				return ignored;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean isMaterialized(Map<String, byte[]> materialized, String prefix) {
+		for (String path : materialized.keySet()) {
+			if (path.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// the .gitignore files of the directories above the given one, the closest first
+	private Map<String, IgnoreNode> getParentIgnoreRules(String directory) throws IOException {
+		Map<String, IgnoreNode> rules = new LinkedHashMap<String, IgnoreNode>();
+		String parent = directory;
+		while (!parent.isEmpty()) {
+			parent = parent.contains("/") ? parent.substring(0, parent.lastIndexOf('/')) : "";
+			byte[] content = read(parent.isEmpty() ? Constants.DOT_GIT_IGNORE : parent + "/" + Constants.DOT_GIT_IGNORE);
+			if (content != null) {
+				IgnoreNode node = new IgnoreNode();
+				node.parse(new ByteArrayInputStream(content));
+				rules.put(parent, node);
+			}
+		}
+		return rules;
+	}
+	
+	/**
+	 * Writes the changed blobs and the resulting tree, you still need to flush the inserter.
+	 */
+	public ObjectId writeTree(ObjectInserter inserter) {
+		try {
+			DirCache dirCache = DirCache.newInCore();
+			DirCacheBuilder builder = dirCache.builder();
+			builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, tree);
+			builder.finish();
+			DirCacheEditor editor = dirCache.editor();
+			for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+				if (change.getValue() == null) {
+					editor.add(new DirCacheEditor.DeletePath(change.getKey()));
+				}
+				else {
+					final ObjectId blob = inserter.insert(Constants.OBJ_BLOB, change.getValue());
+					final int length = change.getValue().length;
+					editor.add(new DirCacheEditor.PathEdit(change.getKey()) {
+						@Override
+						public void apply(DirCacheEntry entry) {
+							// keep the mode of existing files (e.g. executable)
+							if (entry.getRawMode() == 0 || entry.getFileMode().getObjectType() != Constants.OBJ_BLOB) {
+								entry.setFileMode(FileMode.REGULAR_FILE);
+							}
+							entry.setObjectId(blob);
+							entry.setLength(length);
+						}
+					});
+				}
+			}
+			editor.finish();
+			return dirCache.writeTree(inserter);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private TreeWalk newTreeWalk(String directory, boolean recursive) throws IOException {
+		TreeWalk treeWalk = new TreeWalk(reader);
+		treeWalk.addTree(tree);
+		treeWalk.setRecursive(recursive);
+		if (!directory.isEmpty()) {
+			treeWalk.setFilter(PathFilter.create(directory));
+		}
+		return treeWalk;
+	}
+	
+	private static int getDepth(String directory) {
+		if (directory.isEmpty()) {
+			return 0;
+		}
+		int depth = 1;
+		for (int i = 0; i < directory.length(); i++) {
+			if (directory.charAt(i) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+}
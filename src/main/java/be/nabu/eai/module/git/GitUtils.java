@@ -17,15 +17,193 @@
 
 package be.nabu.eai.module.git;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RefSpec;
 
 public class GitUtils {
 	
+	private static final Pattern RANGE = Pattern.compile("^bytes=([0-9]*)-([0-9]*)$");
+	
 	public static Date getCommitDate(RevCommit commit) {
 		return commit.getAuthorIdent() != null && commit.getAuthorIdent().getWhen() != null
 				? commit.getAuthorIdent().getWhen()
 				: new Date(1000L * commit.getCommitTime());
 	}
+	
+	// a stable key for the project folder of a repository, regardless of whether you pass in the project folder or the .git folder
+	public static String getProjectKey(File folder) {
+		if (folder.getName().equals(".git")) {
+			folder = folder.getParentFile();
+		}
+		try {
+			return folder.getCanonicalPath();
+		}
+		catch (IOException e) {
+			return folder.getAbsolutePath();
+		}
+	}
+	
+	// the local folder of the git repository behind a file uri, or null if it is not a local repository
+	public static File getLocalGitFolder(String uri) {
+		if (!uri.startsWith("file:")) {
+			return null;
+		}
+		File folder = new File(URI.create(uri));
+		if (new File(folder, ".git/objects").isDirectory()) {
+			return new File(folder, ".git");
+		}
+		// bare
+		else if (new File(folder, "objects").isDirectory() && new File(folder, "HEAD").isFile()) {
+			return folder;
+		}
+		return null;
+	}
+	
+	// the refs of the source that match the refspecs, mapped to their destination name
+	public static Map<String, ObjectId> getRefs(Repository source, RefSpec...refSpecs) throws IOException {
+		Map<String, ObjectId> refs = new LinkedHashMap<String, ObjectId>();
+		for (Ref ref : source.getRefDatabase().getRefs()) {
+			if (ref.isSymbolic() || ref.getObjectId() == null) {
+				continue;
+			}
+			for (RefSpec refSpec : refSpecs) {
+				if (refSpec.matchSource(ref)) {
+					refs.put(refSpec.expandFromSource(ref).getDestination(), ref.getObjectId());
+					break;
+				}
+			}
+		}
+		return refs;
+	}
+	
+	// write the refs straight into the ref database, the objects must already be available
+	public static void setRefs(Repository target, Map<String, ObjectId> refs) throws IOException {
+		BatchRefUpdate update = target.getRefDatabase().newBatchUpdate();
+		update.setAllowNonFastForwards(true);
+		update.setRefLogMessage("copied", false);
+		for (Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+			Ref existing = target.exactRef(ref.getKey());
+			if (existing == null) {
+				update.addCommand(new ReceiveCommand(ObjectId.zeroId(), ref.getValue(), ref.getKey(), ReceiveCommand.Type.CREATE));
+			}
+			else if (!ref.getValue().equals(existing.getObjectId())) {
+				update.addCommand(new ReceiveCommand(existing.getObjectId(), ref.getValue(), ref.getKey(), ReceiveCommand.Type.UPDATE_NONFASTFORWARD));
+			}
+		}
+		try (RevWalk revWalk = new RevWalk(target)) {
+			update.execute(revWalk, NullProgressMonitor.INSTANCE);
+		}
+		for (ReceiveCommand command : update.getCommands()) {
+			if (command.getResult() != ReceiveCommand.Result.OK) {
+				throw new IOException("Could not set '" + command.getRefName() + "': " + command.getResult());
+			}
+		}
+	}
+	
+	// whether everything the refs need made it into the repository (its .git folder): not just the commits they point to but all the history, trees and blobs behind them
+	// the source is not locked while we link its objects, if it was repacked or pruned in the meantime we may have missed a pack or loose objects
+	// the refs the repository already has are connected, we only walk what they don't reach
+	public static boolean isConnected(File gitFolder, Map<String, ObjectId> refs) throws IOException {
+		// a fresh repository so it picks up the alternates and packs we just linked
+		try (Repository repository = new FileRepositoryBuilder().setGitDir(gitFolder).setMustExist(true).build(); ObjectWalk walk = new ObjectWalk(repository)) {
+			for (ObjectId id : refs.values()) {
+				walk.markStart(walk.parseAny(id));
+			}
+			for (Ref ref : repository.getRefDatabase().getRefs()) {
+				if (ref.getObjectId() != null) {
+					try {
+						walk.markUninteresting(walk.parseAny(ref.getObjectId()));
+					}
+					// a broken ref of our own does not mean the new refs are incomplete, we just can't use it as a boundary
+					catch (MissingObjectException e) {
+						continue;
+					}
+				}
+			}
+			walk.checkConnectivity();
+			return true;
+		}
+		catch (MissingObjectException e) {
+			return false;
+		}
+	}
+	
+	// git objects and packs are immutable once written, so we can hardlink them instead of copying
+	// if the file system does not allow it (e.g. a different disk), we copy instead
+	// returns the amount of files that had to be copied
+	public static int linkObjects(File source, File target) throws IOException {
+		int copied = 0;
+		File[] children = source.listFiles();
+		if (children != null) {
+			target.mkdirs();
+			for (File child : children) {
+				File targetChild = new File(target, child.getName());
+				if (child.isDirectory()) {
+					// the info folder contains the alternates (which we handle separately) and the packs list
+					if (!child.getName().equals("info")) {
+						copied += linkObjects(child, targetChild);
+					}
+				}
+				// temporary files of writes in progress, we'll pick up the result the next time
+				else if (!targetChild.exists() && !child.getName().startsWith("tmp_") && !child.getName().endsWith(".lock")) {
+					try {
+						Files.createLink(targetChild.toPath(), child.toPath());
+					}
+					catch (FileAlreadyExistsException e) {
+						// someone else got there first, it has the same content
+					}
+					catch (IOException | UnsupportedOperationException e) {
+						Files.copy(child.toPath(), targetChild.toPath());
+						copied++;
+					}
+				}
+			}
+		}
+		return copied;
+	}
+	
+	// parses an http byte range ("bytes=0-1023", "bytes=1024-" or "bytes=-1024" for the last 1024 bytes) into the offset and length, no range means everything
+	public static long[] getRange(String range, long size) {
+		if (range == null || range.trim().isEmpty()) {
+			return new long[] { 0, size };
+		}
+		Matcher matcher = RANGE.matcher(range.trim());
+		if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+			throw new IllegalArgumentException("Unsupported range: " + range);
+		}
+		long offset, end;
+		if (matcher.group(1).isEmpty()) {
+			offset = Math.max(0, size - Long.parseLong(matcher.group(2)));
+			end = size - 1;
+		}
+		else {
+			offset = Long.parseLong(matcher.group(1));
+			end = matcher.group(2).isEmpty() ? size - 1 : Math.min(Long.parseLong(matcher.group(2)), size - 1);
+		}
+		if (offset >= size || end < offset) {
+			throw new IllegalArgumentException("Range not satisfiable: " + range + " (size " + size + ")");
+		}
+		return new long[] { offset, end - offset + 1 };
+	}
 }
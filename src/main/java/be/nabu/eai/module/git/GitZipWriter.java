@@ -0,0 +1,584 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nabu.misc.git.types.GitArtifactEntry;
+import nabu.misc.git.types.GitArtifactManifest;
+
+/**
+ * Writes a zip of blobs from the object database, the entries are compressed in parallel on a shared pool.
+ * The zip itself is written by a single thread in the order of the entries, so the result is deterministic.
+ * 
+ * We write the zip format ourselves as the ZipOutputStream can not accept data that is already deflated.
+ * Small entries are compressed in memory in batches, large entries are streamed on the writing thread so the memory use stays bounded.
+ * Content that is already compressed (jars, images...) is stored as is.
+ * While compressing we also hash the content, the resulting manifest allows deployers to skip files they already have.
+ */
+public class GitZipWriter {
+	
+	private static int threads = Integer.parseInt(System.getProperty("git.zip.threads", "" + Runtime.getRuntime().availableProcessors()));
+	// entries larger than this (in bytes) are not compressed in memory but streamed
+	private static long defaultStreamThreshold = Long.parseLong(System.getProperty("git.zip.streamThreshold", "" + (16 * 1024 * 1024)));
+	// the extensions of files that are already compressed
+	private static Set<String> stored = new HashSet<String>(Arrays.asList(System.getProperty("git.zip.stored", "zip,jar,war,ear,gz,tgz,bz2,xz,7z,png,jpg,jpeg,gif,webp,ico,woff,woff2,mp3,mp4").toLowerCase().split("[\\s]*,[\\s]*")));
+	// how many bytes we compress in a single task
+	private static final long BATCH_SIZE = 1024 * 1024;
+	private static volatile ExecutorService executor;
+	
+	private static final int METHOD_STORED = 0, METHOD_DEFLATED = 8;
+	private static final int FLAG_DESCRIPTOR = 0x0008, FLAG_UTF8 = 0x0800;
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private Repository repository;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private long time = System.currentTimeMillis();
+	private long streamThreshold = defaultStreamThreshold;
+	private GitArtifactManifest manifest;
+	
+	public GitZipWriter(Repository repository) {
+		this.repository = repository;
+	}
+	
+	public static class Entry {
+		private String path;
+		private ObjectId blob;
+		private long size;
+		// content that does not come from the object database, e.g. a generated manifest
+		private byte[] content;
+		
+		public Entry(String path, AnyObjectId blob, long size) {
+			this.path = path;
+			this.blob = blob.copy();
+			this.size = size;
+		}
+		public Entry(String path, byte[] content) {
+			this.path = path;
+			this.content = content;
+			this.size = content.length;
+		}
+	}
+	
+	// an entry as it goes into the zip
+	private static class Compressed {
+		private String path;
+		private ObjectId blob;
+		// the sha-256 of the content
+		private String hash;
+		private byte[] name;
+		private int method, flags;
+		private long crc, compressedSize, size, offset;
+		// the compressed data, null if it is streamed
+		private byte[] data;
+	}
+	
+	public static class Statistics {
+		private int entries;
+		private long size, compressedSize, compressionTime, duration;
+		
+		public int getEntries() {
+			return entries;
+		}
+		public long getSize() {
+			return size;
+		}
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+		// the sum of the time spent compressing over all threads
+		public long getCompressionTime() {
+			return compressionTime;
+		}
+		public long getDuration() {
+			return duration;
+		}
+		public double getRatio() {
+			return size == 0 ? 1 : (double) compressedSize / size;
+		}
+	}
+	
+	public Statistics write(List<Entry> entries, OutputStream target) throws IOException {
+		long started = System.currentTimeMillis();
+		Statistics statistics = new Statistics();
+		CountingOutputStream output = new CountingOutputStream(target);
+		List<Compressed> written = new ArrayList<Compressed>();
+		// we only keep a limited amount of batches in flight so the memory use does not depend on the size of the zip
+		Deque<Future<List<Compressed>>> pending = new ArrayDeque<Future<List<Compressed>>>();
+		int window = Math.max(2, threads * 2);
+		try {
+			List<Entry> batch = new ArrayList<Entry>();
+			long batchSize = 0;
+			for (Entry entry : entries) {
+				if (entry.content == null && entry.size > streamThreshold) {
+					pending.add(submit(batch, statistics));
+					batch = new ArrayList<Entry>();
+					batchSize = 0;
+					// everything before it must be written first
+					while (!pending.isEmpty()) {
+						writeAll(pending.poll(), output, written);
+					}
+					written.add(stream(entry, output, statistics));
+					continue;
+				}
+				batch.add(entry);
+				batchSize += entry.size;
+				if (batchSize >= BATCH_SIZE) {
+					pending.add(submit(batch, statistics));
+					batch = new ArrayList<Entry>();
+					batchSize = 0;
+					while (pending.size() >= window) {
+						writeAll(pending.poll(), output, written);
+					}
+				}
+			}
+			pending.add(submit(batch, statistics));
+			while (!pending.isEmpty()) {
+				writeAll(pending.poll(), output, written);
+			}
+			writeCentralDirectory(written, output);
+			output.flush();
+		}
+		finally {
+			for (Future<List<Compressed>> future : pending) {
+				future.cancel(true);
+			}
+		}
+		statistics.entries = written.size();
+		manifest = new GitArtifactManifest();
+		for (Compressed compressed : written) {
+			statistics.size += compressed.size;
+			statistics.compressedSize += compressed.compressedSize;
+			GitArtifactEntry entry = new GitArtifactEntry();
+			entry.setPath(compressed.path);
+			entry.setBlob(compressed.blob == null ? null : compressed.blob.name());
+			entry.setHash(compressed.hash);
+			entry.setSize(compressed.size);
+			manifest.getEntries().add(entry);
+		}
+		statistics.duration = System.currentTimeMillis() - started;
+		return statistics;
+	}
+	
+	private void writeAll(Future<List<Compressed>> future, CountingOutputStream output, List<Compressed> written) throws IOException {
+		List<Compressed> batch;
+		try {
+			batch = future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		for (Compressed compressed : batch) {
+			compressed.offset = output.getPosition();
+			writeLocalHeader(compressed, output);
+			output.write(compressed.data);
+			// no need to keep it around
+			compressed.data = null;
+			written.add(compressed);
+		}
+	}
+	
+	private Future<List<Compressed>> submit(final List<Entry> batch, final Statistics statistics) {
+		return getExecutor().submit(new Callable<List<Compressed>>() {
+			@Override
+			public List<Compressed> call() throws Exception {
+				long started = System.nanoTime();
+				List<Compressed> result = new ArrayList<Compressed>();
+				// object readers are not thread safe
+				try (ObjectReader reader = repository.newObjectReader()) {
+					Deflater deflater = new Deflater(level, true);
+					MessageDigest digest = newDigest();
+					try {
+						for (Entry entry : batch) {
+							result.add(compress(reader, deflater, digest, entry));
+						}
+					}
+					finally {
+						deflater.end();
+					}
+				}
+				synchronized(statistics) {
+					statistics.compressionTime += (System.nanoTime() - started) / 1000000;
+				}
+				return result;
+			}
+		});
+	}
+	
+	private Compressed compress(ObjectReader reader, Deflater deflater, MessageDigest digest, Entry entry) throws IOException {
+		byte[] content = entry.content != null ? entry.content : reader.open(entry.blob, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+		Compressed compressed = newCompressed(entry);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		compressed.crc = crc.getValue();
+		compressed.hash = toHex(digest.digest(content));
+		compressed.size = content.length;
+		if (!isStored(entry.path)) {
+			deflater.reset();
+			deflater.setInput(content);
+			deflater.finish();
+			ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				output.write(buffer, 0, length);
+			}
+			// only keep it if it actually helps
+			if (output.size() < content.length) {
+				compressed.method = METHOD_DEFLATED;
+				compressed.data = output.toByteArray();
+			}
+		}
+		if (compressed.data == null) {
+			compressed.method = METHOD_STORED;
+			compressed.data = content;
+		}
+		compressed.compressedSize = compressed.data.length;
+		return compressed;
+	}
+	
+	// large entries are streamed, deflated ones get a data descriptor as we only know the sizes afterwards
+	private Compressed stream(Entry entry, CountingOutputStream output, Statistics statistics) throws IOException {
+		long started = System.nanoTime();
+		Compressed compressed = newCompressed(entry);
+		compressed.offset = output.getPosition();
+		try (ObjectReader reader = repository.newObjectReader()) {
+			ObjectLoader loader = reader.open(entry.blob, Constants.OBJ_BLOB);
+			if (loader.getSize() > ZIP64_LIMIT) {
+				throw new IOException("Entry is too large to be zipped: " + entry.path);
+			}
+			compressed.size = loader.getSize();
+			MessageDigest digest = newDigest();
+			if (isStored(entry.path)) {
+				// a stored entry needs its crc up front
+				compressed.method = METHOD_STORED;
+				compressed.crc = copy(loader, null, digest);
+				compressed.compressedSize = compressed.size;
+				writeLocalHeader(compressed, output);
+				copy(loader, output, null);
+			}
+			else {
+				compressed.method = METHOD_DEFLATED;
+				compressed.flags |= FLAG_DESCRIPTOR;
+				writeLocalHeader(compressed, output);
+				long start = output.getPosition();
+				Deflater deflater = new Deflater(level, true);
+				try {
+					DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(new NonClosingOutputStream(output), deflater, 65536);
+					compressed.crc = copy(loader, deflaterOutput, digest);
+					deflaterOutput.finish();
+				}
+				finally {
+					deflater.end();
+				}
+				compressed.compressedSize = output.getPosition() - start;
+				if (compressed.compressedSize > ZIP64_LIMIT) {
+					throw new IOException("Entry is too large to be zipped: " + entry.path);
+				}
+				writeInt(output, 0x08074b50);
+				writeInt(output, compressed.crc);
+				writeInt(output, compressed.compressedSize);
+				writeInt(output, compressed.size);
+			}
+			compressed.hash = toHex(digest.digest());
+		}
+		synchronized(statistics) {
+			statistics.compressionTime += (System.nanoTime() - started) / 1000000;
+		}
+		return compressed;
+	}
+	
+	// copies the content (if there is an output) and returns the crc, the digest (if any) is updated along the way
+	private static long copy(ObjectLoader loader, OutputStream output, MessageDigest digest) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		try (InputStream input = loader.openStream()) {
+			int read;
+			while ((read = input.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+				if (digest != null) {
+					digest.update(buffer, 0, read);
+				}
+				if (output != null) {
+					output.write(buffer, 0, read);
+				}
+			}
+		}
+		return crc.getValue();
+	}
+	
+	private Compressed newCompressed(Entry entry) {
+		Compressed compressed = new Compressed();
+		compressed.path = entry.path;
+		compressed.blob = entry.blob;
+		compressed.name = entry.path.getBytes(Charset.forName("UTF-8"));
+		compressed.flags = FLAG_UTF8;
+		return compressed;
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+	
+	private static boolean isStored(String path) {
+		int index = path.lastIndexOf('.');
+		return index >= 0 && index > path.lastIndexOf('/') && stored.contains(path.substring(index + 1).toLowerCase());
+	}
+	
+	private void writeLocalHeader(Compressed compressed, OutputStream output) throws IOException {
+		boolean descriptor = (compressed.flags & FLAG_DESCRIPTOR) != 0;
+		writeInt(output, 0x04034b50);
+		writeShort(output, 20);
+		writeShort(output, compressed.flags);
+		writeShort(output, compressed.method);
+		writeShort(output, getDosTime());
+		writeShort(output, getDosDate());
+		writeInt(output, descriptor ? 0 : compressed.crc);
+		writeInt(output, descriptor ? 0 : compressed.compressedSize);
+		writeInt(output, descriptor ? 0 : compressed.size);
+		writeShort(output, compressed.name.length);
+		writeShort(output, 0);
+		output.write(compressed.name);
+	}
+	
+	private void writeCentralDirectory(List<Compressed> entries, CountingOutputStream output) throws IOException {
+		long start = output.getPosition();
+		for (Compressed compressed : entries) {
+			// only the offset can exceed the limit, we don't write entries that are larger
+			boolean zip64 = compressed.offset >= ZIP64_LIMIT;
+			writeInt(output, 0x02014b50);
+			writeShort(output, zip64 ? 45 : 20);
+			writeShort(output, zip64 ? 45 : 20);
+			writeShort(output, compressed.flags);
+			writeShort(output, compressed.method);
+			writeShort(output, getDosTime());
+			writeShort(output, getDosDate());
+			writeInt(output, compressed.crc);
+			writeInt(output, compressed.compressedSize);
+			writeInt(output, compressed.size);
+			writeShort(output, compressed.name.length);
+			writeShort(output, zip64 ? 12 : 0);
+			// comment, disk, internal and external attributes
+			writeShort(output, 0);
+			writeShort(output, 0);
+			writeShort(output, 0);
+			writeInt(output, 0);
+			writeInt(output, zip64 ? ZIP64_LIMIT : compressed.offset);
+			output.write(compressed.name);
+			if (zip64) {
+				writeShort(output, 0x0001);
+				writeShort(output, 8);
+				writeLong(output, compressed.offset);
+			}
+		}
+		long end = output.getPosition();
+		long size = end - start;
+		if (entries.size() >= 0xFFFF || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT) {
+			// the zip64 end of central directory record and its locator
+			writeInt(output, 0x06064b50);
+			writeLong(output, 44);
+			writeShort(output, 45);
+			writeShort(output, 45);
+			writeInt(output, 0);
+			writeInt(output, 0);
+			writeLong(output, entries.size());
+			writeLong(output, entries.size());
+			writeLong(output, size);
+			writeLong(output, start);
+			writeInt(output, 0x07064b50);
+			writeInt(output, 0);
+			writeLong(output, end);
+			writeInt(output, 1);
+		}
+		writeInt(output, 0x06054b50);
+		writeShort(output, 0);
+		writeShort(output, 0);
+		writeShort(output, Math.min(entries.size(), 0xFFFF));
+		writeShort(output, Math.min(entries.size(), 0xFFFF));
+		writeInt(output, Math.min(size, ZIP64_LIMIT));
+		writeInt(output, Math.min(start, ZIP64_LIMIT));
+		writeShort(output, 0);
+	}
+	
+	private int getDosTime() {
+		Calendar calendar = getCalendar();
+		return calendar == null ? 0 : (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+	
+	private int getDosDate() {
+		Calendar calendar = getCalendar();
+		return calendar == null ? (1 << 5) | 1 : ((calendar.get(Calendar.YEAR) - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+	}
+	
+	// dos dates start in 1980
+	private Calendar getCalendar() {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		return calendar.get(Calendar.YEAR) < 1980 ? null : calendar;
+	}
+	
+	private static void writeShort(OutputStream output, int value) throws IOException {
+		output.write(value & 0xff);
+		output.write((value >>> 8) & 0xff);
+	}
+	
+	private static void writeInt(OutputStream output, long value) throws IOException {
+		writeShort(output, (int) (value & 0xffff));
+		writeShort(output, (int) ((value >>> 16) & 0xffff));
+	}
+	
+	private static void writeLong(OutputStream output, long value) throws IOException {
+		writeInt(output, value & 0xffffffffL);
+		writeInt(output, value >>> 32);
+	}
+	
+	private static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized(GitZipWriter.class) {
+				if (executor == null) {
+					executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+						private AtomicInteger counter = new AtomicInteger();
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "git-zip-" + counter.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return executor;
+	}
+	
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long position;
+		
+		public CountingOutputStream(OutputStream output) {
+			super(output);
+		}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			position++;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			position += len;
+		}
+		public long getPosition() {
+			return position;
+		}
+	}
+	
+	// the deflater stream should not close the zip
+	private static class NonClosingOutputStream extends FilterOutputStream {
+		public NonClosingOutputStream(OutputStream output) {
+			super(output);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	// the manifest of the last zip that was written, the paths are the paths in the zip
+	public GitArtifactManifest getManifest() {
+		return manifest;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	public long getTime() {
+		return time;
+	}
+	// the modification time of all the entries, using the commit time makes the zip reproducible
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	public long getStreamThreshold() {
+		return streamThreshold;
+	}
+	public void setStreamThreshold(long streamThreshold) {
+		this.streamThreshold = streamThreshold;
+	}
+}
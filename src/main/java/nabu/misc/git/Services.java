@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -66,18 +67,27 @@ import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
 import org.eclipse.jgit.lib.PersonIdent;
-import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.eai.module.deployment.action.DeploymentAction;
+import be.nabu.eai.module.git.GitArtifactCache;
+import be.nabu.eai.module.git.GitArtifactQueue;
+import be.nabu.eai.module.git.GitCloner;
 import be.nabu.eai.module.git.GitInformation;
 import be.nabu.eai.module.git.GitInformations;
+import be.nabu.eai.module.git.GitLock;
+import be.nabu.eai.module.git.GitLockManager;
+import be.nabu.eai.module.git.GitMaintenance;
+import be.nabu.eai.module.git.GitObjectStore;
 import be.nabu.eai.module.git.GitPatch;
+import be.nabu.eai.module.git.GitRefs;
 import be.nabu.eai.module.git.GitRelease;
 import be.nabu.eai.module.git.GitRepository;
+import be.nabu.eai.module.git.GitRepositoryRegistry;
 import be.nabu.eai.repository.EAIRepositoryUtils;
 import be.nabu.eai.repository.EAIResourceRepository;
 import be.nabu.eai.repository.api.Entry;
@@ -97,12 +107,17 @@ import be.nabu.libs.types.binding.api.Window;
 import be.nabu.libs.types.binding.xml.XMLBinding;
 import be.nabu.libs.types.java.BeanInstance;
 import be.nabu.libs.types.java.BeanResolver;
+import nabu.misc.git.types.GitArtifactCacheStatistics;
+import nabu.misc.git.types.GitArtifactManifest;
+import nabu.misc.git.types.GitArtifactQueueStatistics;
+import nabu.misc.git.types.GitArtifactRange;
 import nabu.misc.git.types.GitBuild;
+import nabu.misc.git.types.GitLockStatistics;
+import nabu.misc.git.types.GitMaintenanceStatistics;
 import nabu.misc.git.types.MergeResult;
 
 // if we are releasing on the same server, we clone the directory of the project itself
-// we can't really cache the git repositories because the nabu server might be clustered (though they should use a shared drive then)
-// in the future, if recreating the git repositories proves to be too much overhead, we _can_ cache them and simply update them using server-to-server communication
+// the build repositories are kept open in the registry, if the nabu server is clustered (on a shared drive), the registry picks up ref changes made by other servers
 
 /**
  * Ideally we don't want to put too many restrictions on the development side. Do you want to work with a "develop" branch and periodically merge to master?
@@ -345,6 +360,11 @@ public class Services {
 		return command;
 	}
 	
+	// the build repositories are shared, so the credentials are passed per operation
+	private CredentialsProvider getCredentialsProvider(BasicPrincipal credentials) {
+		return credentials.getName() == null ? null : new UsernamePasswordCredentialsProvider(credentials.getName(), credentials.getPassword());
+	}
+	
 	// we release an entire project
 	// we first run the deployment actions (source)
 	// then do a final commit (see above)
@@ -368,18 +388,8 @@ public class Services {
 		
 		try {
 			// then we tag it
-			// first we check what the highest version was that we tagged before
-			List<Ref> tags = git.tagList().call();
-			int highestVersion = 0;
-			for (Ref tag : tags) {
-				String name = tag.getName().replaceAll("^.*/([^/]+$)", "$1");
-				if (name.matches("^v[0-9]+$")) {
-					int tagVersion = Integer.parseInt(name.substring(1));
-					if (tagVersion > highestVersion) {
-						highestVersion = tagVersion;
-					}
-				}
-			}
+			// first we check what the highest version was that we tagged before, we only need to look at the v* tags
+			int highestVersion = new GitRefs(git.getRepository()).getHighestVersion();
 			// create the tag
 			git.tag()
 				.setName("v" + (highestVersion + 1))
@@ -404,6 +414,7 @@ public class Services {
 	@WebResult(name = "build")
 	public GitBuild buildInformation(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name) throws Exception {
 		GitRepository repository = getRepository(workspace, name);
+		// only reads from the object database, this can run while a build is in progress
 		try {
 			GitBuild build = new GitBuild();
 			build.setName(name);
@@ -411,7 +422,7 @@ public class Services {
 			return build;
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 	
@@ -517,20 +528,17 @@ public class Services {
 			return repository.getMergeResult(branch);
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 	
 	public void setMergeResult(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "branch") String branch, @WebParam(name = "result") MergeResult result) throws Exception {
 		GitRepository repository = getRepository(workspace, name);
-		try {
-			BasicPrincipal credentials = getCredentials(name, null, null);
-			repository.setUsername(credentials.getName());
-			repository.setPassword(credentials.getPassword());
-			repository.setMergeResult(branch, result);
+		try (GitLock lock = GitLockManager.getInstance().lock(repository.getFolder())) {
+			repository.setMergeResult(branch, result, getCredentialsProvider(getCredentials(name, null, null)));
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 
@@ -542,11 +550,12 @@ public class Services {
 		if (!git.exists()) {
 			throw new IllegalArgumentException("There is no build with the name: " + name);
 		}
-		GitRepository repository = new GitRepository(file, name);
-		if (prezip) {
-			repository.setZipFolder(getZipFolder(workspace, name));
-		}
-		return repository;
+		return acquire(workspace, name, file);
+	}
+	
+	// the repository is shared with other calls, the zip folder is fixed per project so it is only set when the repository is opened
+	private GitRepository acquire(String workspace, String name, File file) {
+		return GitRepositoryRegistry.getInstance().acquire(file, name, prezip ? getZipFolder(workspace, name) : null);
 	}
 	
 	private GitInformations getBuildFile() throws FileNotFoundException, IOException, ParseException {
@@ -618,17 +627,17 @@ public class Services {
 			}
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 	
 	public void addEnvironment(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "environment") String environment, @WebParam(name = "copyEnvironment") String copyFromOther) throws Exception {
 		GitRepository repository = getRepository(workspace, name);
-		try {
-			repository.addEnvironment(environment, copyFromOther);
+		try (GitLock lock = GitLockManager.getInstance().lock(repository.getFolder())) {
+			repository.addEnvironment(environment, copyFromOther, getCredentialsProvider(getCredentials(name, null, null)));
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 	
@@ -636,13 +645,62 @@ public class Services {
 	public byte [] zip(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "branch") String branch, @WebParam(name = "releaseCandidate") Integer releaseCandidate, @WebParam(name = "includeRoot") Boolean includeRoot) throws Exception {
 		GitRepository repository = getRepository(workspace, name);
 		try {
+			// the zip is built from the object database, we don't need to touch the working directory or wait for a running build
 			return repository.getAsZip(branch, releaseCandidate, includeRoot != null && includeRoot);
 		}
 		finally {
-			repository.close();
+			GitRepositoryRegistry.getInstance().release(repository);
 		}
 	}
 	
+	// the same as zip but streamed from a file, use this for large projects
+	@WebResult(name = "zip")
+	public InputStream zipStream(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "branch") String branch, @WebParam(name = "releaseCandidate") Integer releaseCandidate, @WebParam(name = "includeRoot") Boolean includeRoot) throws Exception {
+		GitRepository repository = getRepository(workspace, name);
+		try {
+			return repository.getAsZipStream(branch, releaseCandidate, includeRoot != null && includeRoot);
+		}
+		finally {
+			GitRepositoryRegistry.getInstance().release(repository);
+		}
+	}
+	
+	// a part of the zip, pass in the range header of the request (e.g. "bytes=1048576-") to resume a download
+	@WebResult(name = "range")
+	public GitArtifactRange zipRange(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "branch") String branch, @WebParam(name = "releaseCandidate") Integer releaseCandidate, @WebParam(name = "includeRoot") Boolean includeRoot, @WebParam(name = "range") String range) throws Exception {
+		GitRepository repository = getRepository(workspace, name);
+		try {
+			return repository.getZipRange(branch, releaseCandidate, includeRoot != null && includeRoot, range);
+		}
+		finally {
+			GitRepositoryRegistry.getInstance().release(repository);
+		}
+	}
+
+	// the paths, blob ids and hashes of the entries in the zip
+	@WebResult(name = "manifest")
+	public GitArtifactManifest manifest(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "branch") String branch, @WebParam(name = "releaseCandidate") Integer releaseCandidate, @WebParam(name = "includeRoot") Boolean includeRoot) throws Exception {
+		GitRepository repository = getRepository(workspace, name);
+		try {
+			return repository.getManifest(branch, releaseCandidate, includeRoot != null && includeRoot);
+		}
+		finally {
+			GitRepositoryRegistry.getInstance().release(repository);
+		}
+	}
+
+	// only what changed between two release candidates, by default they are compared within the same environment branch
+	@WebResult(name = "zip")
+	public InputStream delta(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "fromBranch") String fromBranch, @WebParam(name = "fromReleaseCandidate") Integer fromReleaseCandidate, @WebParam(name = "toBranch") String toBranch, @WebParam(name = "toReleaseCandidate") Integer toReleaseCandidate, @WebParam(name = "includeRoot") Boolean includeRoot) throws Exception {
+		GitRepository repository = getRepository(workspace, name);
+		try {
+			return repository.getDeltaAsZipStream(fromBranch, fromReleaseCandidate, toBranch == null ? fromBranch : toBranch, toReleaseCandidate, includeRoot != null && includeRoot);
+		}
+		finally {
+			GitRepositoryRegistry.getInstance().release(repository);
+		}
+	}
+
 	// we can "build" a project
 	// this will check for a folder in a certain directory
 	// if it exists, it will work from there
@@ -654,37 +712,38 @@ public class Services {
 		name = name.replaceAll("[^\\w]+", "_");
 		File builds = getWorkspaceFolder(workspace);
 		File file = new File(builds, name);
-		// if we don't find the file, let's check if we can clone it from the current repository
-		if (!file.exists()) {
-			Entry entry = EAIResourceRepository.getInstance().getEntry(name);
-			if (entry instanceof ResourceEntry) {
-				ResourceContainer<?> container = ((ResourceEntry) entry).getContainer();
-				if (container instanceof FileDirectory) {
-					File project = ((FileDirectory) container).getFile();
-					// if the project is not yet version controlled, we need to add that
-					if (!new File(project, ".git").exists()) {
-						release(name, "Release for first build", username, password, true);
+		// one build at a time per project, this includes the initial clone
+		try (GitLock lock = GitLockManager.getInstance().lock(file)) {
+			// if we don't find the file, let's check if we can clone it from the current repository
+			if (!file.exists()) {
+				Entry entry = EAIResourceRepository.getInstance().getEntry(name);
+				if (entry instanceof ResourceEntry) {
+					ResourceContainer<?> container = ((ResourceEntry) entry).getContainer();
+					if (container instanceof FileDirectory) {
+						File project = ((FileDirectory) container).getFile();
+						// if the project is not yet version controlled, we need to add that
+						if (!new File(project, ".git").exists()) {
+							release(name, "Release for first build", username, password, true);
+						}
+						clone(workspace, name, project.toURI(), credentials.getName(), credentials.getPassword());
 					}
-					clone(workspace, name, project.toURI(), credentials.getName(), credentials.getPassword());
 				}
 			}
-		}
-		File git = new File(file, ".git");
-		if (!git.exists()) {
-			throw new IllegalArgumentException("There is no build with the name: " + name);
-		}
-		GitRepository repository = new GitRepository(file, name);
-		try {
-			repository.setUsername(credentials.getName());
-			repository.setPassword(credentials.getPassword());
-			// we'll first check for new version tags
-			return repository.checkForVersionUpdates();
-			// then we'll check for secondary updates
-			// takes a long time and we almost never use it
-//			repository.checkForSecondaryUpdates();
-		}
-		finally {
-			repository.close();
+			File git = new File(file, ".git");
+			if (!git.exists()) {
+				throw new IllegalArgumentException("There is no build with the name: " + name);
+			}
+			GitRepository repository = acquire(workspace, name, file);
+			try {
+				// we'll first check for new version tags
+				return repository.checkForVersionUpdates(getCredentialsProvider(credentials));
+				// then we'll check for secondary updates
+				// takes a long time and we almost never use it
+	//			repository.checkForSecondaryUpdates();
+			}
+			finally {
+				GitRepositoryRegistry.getInstance().release(repository);
+			}
 		}
 	}
 	
@@ -694,23 +753,24 @@ public class Services {
 		name = name.replaceAll("[^\\w]+", "_");
 		File builds = getWorkspaceFolder(workspace);
 		File file = new File(builds, name);
-		// if we don't find the file, let's check if we can clone it from the current repository
-		if (!file.exists()) {
-			throw new IllegalStateException("Could not find project: " + name);
-		}
-		File git = new File(file, ".git");
-		if (!git.exists()) {
-			throw new IllegalArgumentException("There is no build with the name: " + name);
-		}
-		GitRepository repository = new GitRepository(file, name);
-		try {
-			repository.setUsername(credentials.getName());
-			repository.setPassword(credentials.getPassword());
-			// then we'll check for secondary updates
-			return repository.checkForSecondaryUpdates(version);
-		}
-		finally {
-			repository.close();
+		// the hotfix checks out branches in the working directory
+		try (GitLock lock = GitLockManager.getInstance().lock(file)) {
+			// if we don't find the file, let's check if we can clone it from the current repository
+			if (!file.exists()) {
+				throw new IllegalStateException("Could not find project: " + name);
+			}
+			File git = new File(file, ".git");
+			if (!git.exists()) {
+				throw new IllegalArgumentException("There is no build with the name: " + name);
+			}
+			GitRepository repository = acquire(workspace, name, file);
+			try {
+				// then we'll check for secondary updates
+				return repository.checkForSecondaryUpdates(version, getCredentialsProvider(credentials));
+			}
+			finally {
+				GitRepositoryRegistry.getInstance().release(repository);
+			}
 		}
 	}
 	
@@ -731,12 +791,32 @@ public class Services {
 		return new BasicPrincipalImpl();
 	}
 	
-	public void clone(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "endpoint") URI uri, @WebParam(name = "username") String username, @WebParam(name = "password") String password) throws InvalidRemoteException, TransportException, GitAPIException {
+	public void clone(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "endpoint") URI uri, @WebParam(name = "username") String username, @WebParam(name = "password") String password) throws InvalidRemoteException, TransportException, GitAPIException, URISyntaxException, IOException {
 		name = name.replaceAll("[^\\w]+", "_");
 		File builds = getWorkspaceFolder(workspace);
-		authenticate(Git.cloneRepository().setURI(uri.toASCIIString()), username, password).setDirectory(new File(builds, name)).call();
+		File target = new File(builds, name);
+		try (GitLock lock = GitLockManager.getInstance().lock(target)) {
+			// in case we had an older clone open
+			GitRepositoryRegistry.getInstance().evict(target);
+			GitCloner cloner = new GitCloner();
+			if (GitObjectStore.isEnabled()) {
+				cloner.setObjectStore(GitObjectStore.forProject(getBuildsFolder(), name));
+			}
+			if (username != null) {
+				cloner.setCredentials(new UsernamePasswordCredentialsProvider(username, password));
+			}
+			cloner.clone(uri.toASCIIString(), target);
+		}
 	}
 
+	// repack the object store shared by the workspaces of a project
+	public void packObjectStore(@NotNull @WebParam(name = "name") String name) throws GitAPIException, IOException {
+		GitObjectStore store = GitObjectStore.forProject(getBuildsFolder(), name.replaceAll("[^\\w]+", "_"));
+		if (store.exists()) {
+			store.pack();
+		}
+	}
+	
 	private File getWorkspaceFolder(String workspace) {
 		File builds = getBuildsFolder();
 		if (workspace == null) {
@@ -783,6 +863,7 @@ public class Services {
 			if (!builds.exists()) {
 				builds.mkdirs();
 			}
+			GitMaintenance.getInstance().register(builds);
 			return buildsFolder = builds;
 		}
 		return buildsFolder;
@@ -810,7 +891,48 @@ public class Services {
 		return builds;
 	}
 	
+	@WebResult(name = "locks")
+	public List<GitLockStatistics> lockStatistics() {
+		return GitLockManager.getInstance().getStatistics();
+	}
+	
+	// run the maintenance for a single project now, regardless of the thresholds
+	@WebResult(name = "statistics")
+	public GitMaintenanceStatistics maintain(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name) throws IOException {
+		name = name.replaceAll("[^\\w]+", "_");
+		File git = new File(new File(getWorkspaceFolder(workspace), name), ".git");
+		if (!git.exists()) {
+			throw new FileNotFoundException("No repository found for: " + name);
+		}
+		return GitMaintenance.getInstance().maintain(git, true);
+	}
+	
+	@WebResult(name = "repositories")
+	public List<GitMaintenanceStatistics> maintenanceStatistics() {
+		return GitMaintenance.getInstance().getStatistics();
+	}
+	
+	@WebResult(name = "caches")
+	public List<GitArtifactCacheStatistics> zipCacheStatistics() {
+		return GitArtifactCache.getAllStatistics();
+	}
+	
+	// the background queue that writes the zips for new release candidates
+	@WebResult(name = "queue")
+	public GitArtifactQueueStatistics zipQueueStatistics() {
+		return GitArtifactQueue.getInstance().getStatistics();
+	}
+	
 	public List<String> getReleaseNotes(@WebParam(name = "workspace") String workspace, @NotNull @WebParam(name = "name") String name, @NotNull @WebParam(name = "version") Integer version) throws RevisionSyntaxException, AmbiguousObjectException, IncorrectObjectTypeException, NoHeadException, IOException, GitAPIException {
-		return version == null ? null : getRepository(workspace, name).getReleaseNotes(version, 0);
+		if (version == null) {
+			return null;
+		}
+		GitRepository repository = getRepository(workspace, name);
+		try {
+			return repository.getReleaseNotes(version, 0);
+		}
+		finally {
+			GitRepositoryRegistry.getInstance().release(repository);
+		}
 	}
 }
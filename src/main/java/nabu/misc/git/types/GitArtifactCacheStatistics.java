@@ -0,0 +1,74 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package nabu.misc.git.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class GitArtifactCacheStatistics {
+	// the zip folder
+	private String folder;
+	// the current amount of zips and their total size in bytes
+	private int artifacts;
+	private long size;
+	private long hits, misses, evictions, evictedSize;
+	
+	public String getFolder() {
+		return folder;
+	}
+	public void setFolder(String folder) {
+		this.folder = folder;
+	}
+	public int getArtifacts() {
+		return artifacts;
+	}
+	public void setArtifacts(int artifacts) {
+		this.artifacts = artifacts;
+	}
+	public long getSize() {
+		return size;
+	}
+	public void setSize(long size) {
+		this.size = size;
+	}
+	public long getHits() {
+		return hits;
+	}
+	public void setHits(long hits) {
+		this.hits = hits;
+	}
+	public long getMisses() {
+		return misses;
+	}
+	public void setMisses(long misses) {
+		this.misses = misses;
+	}
+	public long getEvictions() {
+		return evictions;
+	}
+	public void setEvictions(long evictions) {
+		this.evictions = evictions;
+	}
+	public long getEvictedSize() {
+		return evictedSize;
+	}
+	public void setEvictedSize(long evictedSize) {
+		this.evictedSize = evictedSize;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package nabu.misc.git.types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement(name = "manifest")
+public class GitArtifactManifest {
+	// the tree the artifact was built from
+	private String tree;
+	private List<GitArtifactEntry> entries;
+	
+	public String getTree() {
+		return tree;
+	}
+	public void setTree(String tree) {
+		this.tree = tree;
+	}
+	public List<GitArtifactEntry> getEntries() {
+		if (entries == null) {
+			entries = new ArrayList<GitArtifactEntry>();
+		}
+		return entries;
+	}
+	public void setEntries(List<GitArtifactEntry> entries) {
+		this.entries = entries;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package nabu.misc.git.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class GitArtifactQueueStatistics {
+	// the amount of zips waiting for a thread and the amount being written right now
+	private int queued, running;
+	// requests for a zip that was already queued or being written are deduplicated
+	private long submitted, deduplicated, completed, failed;
+	// in milliseconds, the wait is the time between submission and start
+	private long averageWait, maxWait, averageDuration;
+	
+	public int getQueued() {
+		return queued;
+	}
+	public void setQueued(int queued) {
+		this.queued = queued;
+	}
+	public int getRunning() {
+		return running;
+	}
+	public void setRunning(int running) {
+		this.running = running;
+	}
+	public long getSubmitted() {
+		return submitted;
+	}
+	public void setSubmitted(long submitted) {
+		this.submitted = submitted;
+	}
+	public long getDeduplicated() {
+		return deduplicated;
+	}
+	public void setDeduplicated(long deduplicated) {
+		this.deduplicated = deduplicated;
+	}
+	public long getCompleted() {
+		return completed;
+	}
+	public void setCompleted(long completed) {
+		this.completed = completed;
+	}
+	public long getFailed() {
+		return failed;
+	}
+	public void setFailed(long failed) {
+		this.failed = failed;
+	}
+	public long getAverageWait() {
+		return averageWait;
+	}
+	public void setAverageWait(long averageWait) {
+		this.averageWait = averageWait;
+	}
+	public long getMaxWait() {
+		return maxWait;
+	}
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+	public long getAverageDuration() {
+		return averageDuration;
+	}
+	public void setAverageDuration(long averageDuration) {
+		this.averageDuration = averageDuration;
+	}
+}
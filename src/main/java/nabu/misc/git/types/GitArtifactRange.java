@@ -0,0 +1,58 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package nabu.misc.git.types;
+
+import java.io.InputStream;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A part of an artifact, the offset, length and size are what you need for a content-range header.
+ */
+@XmlRootElement
+public class GitArtifactRange {
+	private InputStream content;
+	// the offset and length of this part, the size is the size of the complete artifact
+	private long offset, length, size;
+	
+	public InputStream getContent() {
+		return content;
+	}
+	public void setContent(InputStream content) {
+		this.content = content;
+	}
+	public long getOffset() {
+		return offset;
+	}
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+	public long getLength() {
+		return length;
+	}
+	public void setLength(long length) {
+		this.length = length;
+	}
+	public long getSize() {
+		return size;
+	}
+	public void setSize(long size) {
+		this.size = size;
+	}
+}
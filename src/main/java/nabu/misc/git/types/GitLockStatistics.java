@@ -0,0 +1,82 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.git.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class GitLockStatistics {
+	// the project folder the lock protects
+	private String project;
+	// how many times the lock was acquired
+	private long locks;
+	// wait and hold times in milliseconds
+	private long waitTime, maxWaitTime, holdTime, maxHoldTime;
+	// the current state of the lock
+	private int queued;
+	private boolean locked;
+	
+	public String getProject() {
+		return project;
+	}
+	public void setProject(String project) {
+		this.project = project;
+	}
+	public long getLocks() {
+		return locks;
+	}
+	public void setLocks(long locks) {
+		this.locks = locks;
+	}
+	public long getWaitTime() {
+		return waitTime;
+	}
+	public void setWaitTime(long waitTime) {
+		this.waitTime = waitTime;
+	}
+	public long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+	public void setMaxWaitTime(long maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+	}
+	public long getHoldTime() {
+		return holdTime;
+	}
+	public void setHoldTime(long holdTime) {
+		this.holdTime = holdTime;
+	}
+	public long getMaxHoldTime() {
+		return maxHoldTime;
+	}
+	public void setMaxHoldTime(long maxHoldTime) {
+		this.maxHoldTime = maxHoldTime;
+	}
+	public int getQueued() {
+		return queued;
+	}
+	public void setQueued(int queued) {
+		this.queued = queued;
+	}
+	public boolean isLocked() {
+		return locked;
+	}
+	public void setLocked(boolean locked) {
+		this.locked = locked;
+	}
+}
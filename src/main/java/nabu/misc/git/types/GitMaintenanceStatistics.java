@@ -0,0 +1,130 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package nabu.misc.git.types;
+
+import java.util.Date;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class GitMaintenanceStatistics {
+	// the git folder of the repository
+	private String repository;
+	// whether it borrows objects from a shared object store
+	private boolean linked;
+	// the state of the object database and the refs as of the last check
+	private long looseObjects, looseSize, packedObjects, packedSize, packedRefsSize;
+	private int packs, looseRefs, packedRefs;
+	// what the last run did (e.g. "repack", "packRefs" or "none") and how long it took in milliseconds
+	private String lastAction;
+	private Date lastRun;
+	private long lastDuration;
+	private long runs, failures;
+	
+	public String getRepository() {
+		return repository;
+	}
+	public void setRepository(String repository) {
+		this.repository = repository;
+	}
+	public boolean isLinked() {
+		return linked;
+	}
+	public void setLinked(boolean linked) {
+		this.linked = linked;
+	}
+	public long getLooseObjects() {
+		return looseObjects;
+	}
+	public void setLooseObjects(long looseObjects) {
+		this.looseObjects = looseObjects;
+	}
+	public long getLooseSize() {
+		return looseSize;
+	}
+	public void setLooseSize(long looseSize) {
+		this.looseSize = looseSize;
+	}
+	public long getPackedObjects() {
+		return packedObjects;
+	}
+	public void setPackedObjects(long packedObjects) {
+		this.packedObjects = packedObjects;
+	}
+	public long getPackedSize() {
+		return packedSize;
+	}
+	public void setPackedSize(long packedSize) {
+		this.packedSize = packedSize;
+	}
+	public long getPackedRefsSize() {
+		return packedRefsSize;
+	}
+	public void setPackedRefsSize(long packedRefsSize) {
+		this.packedRefsSize = packedRefsSize;
+	}
+	public int getPacks() {
+		return packs;
+	}
+	public void setPacks(int packs) {
+		this.packs = packs;
+	}
+	public int getLooseRefs() {
+		return looseRefs;
+	}
+	public void setLooseRefs(int looseRefs) {
+		this.looseRefs = looseRefs;
+	}
+	public int getPackedRefs() {
+		return packedRefs;
+	}
+	public void setPackedRefs(int packedRefs) {
+		this.packedRefs = packedRefs;
+	}
+	public String getLastAction() {
+		return lastAction;
+	}
+	public void setLastAction(String lastAction) {
+		this.lastAction = lastAction;
+	}
+	public Date getLastRun() {
+		return lastRun;
+	}
+	public void setLastRun(Date lastRun) {
+		this.lastRun = lastRun;
+	}
+	public long getLastDuration() {
+		return lastDuration;
+	}
+	public void setLastDuration(long lastDuration) {
+		this.lastDuration = lastDuration;
+	}
+	public long getRuns() {
+		return runs;
+	}
+	public void setRuns(long runs) {
+		this.runs = runs;
+	}
+	public long getFailures() {
+		return failures;
+	}
+	public void setFailures(long failures) {
+		this.failures = failures;
+	}
+}
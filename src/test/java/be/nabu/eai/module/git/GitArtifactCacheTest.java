@@ -0,0 +1,185 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nabu.misc.git.types.GitArtifactManifest;
+
+public class GitArtifactCacheTest {
+	
+	private static final int SIZE = 1000;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private GitArtifactCache cache;
+	private long now = System.currentTimeMillis();
+	
+	@Before
+	public void setUp() throws IOException {
+		cache = GitArtifactCache.getInstance(folder.newFolder("zips"));
+		cache.setMaxSize(0);
+		cache.setMaxAge(0);
+		cache.setProtectedCandidates(0);
+		cache.setPolicy(GitArtifactCache.EvictionPolicy.LRU);
+	}
+	
+	@Test
+	public void testLeastRecentlyUsed() throws IOException {
+		File first = put(1, 3);
+		File second = put(2, 1);
+		File third = put(3, 2);
+		// room for two
+		cache.setMaxSize(2 * SIZE);
+		cache.evict();
+		assertTrue(first.exists());
+		assertFalse(second.exists());
+		assertTrue(third.exists());
+		cache.setMaxSize(SIZE);
+		cache.evict();
+		assertTrue(first.exists());
+		assertFalse(third.exists());
+	}
+	
+	@Test
+	public void testLeastFrequentlyUsed() throws IOException {
+		cache.setPolicy(GitArtifactCache.EvictionPolicy.LFU);
+		File first = put(1, 1);
+		File second = put(2, 2);
+		File third = put(3, 3);
+		assertNotNull(cache.get(name(1), false));
+		assertNotNull(cache.get(name(1), false));
+		assertNotNull(cache.get(name(3), false));
+		cache.setMaxSize(2 * SIZE);
+		cache.evict();
+		assertTrue(first.exists());
+		assertFalse(second.exists());
+		assertTrue(third.exists());
+		// the same amount of accesses falls back to the least recently used
+		cache.get(name(3), false);
+		first.setLastModified(now - 2000);
+		third.setLastModified(now - 1000);
+		cache.setMaxSize(SIZE);
+		cache.evict();
+		assertFalse(first.exists());
+		assertTrue(third.exists());
+	}
+	
+	@Test
+	public void testExpired() throws IOException {
+		File old = put(1, 0);
+		old.setLastModified(now - 10000);
+		File recent = put(2, 1);
+		recent.setLastModified(now);
+		cache.setMaxAge(5000);
+		cache.evict();
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		// the manifest goes with the zip
+		assertFalse(new File(old.getParentFile(), old.getName().replace(".zip", ".manifest.xml")).exists());
+	}
+	
+	@Test
+	public void testProtectedCandidates() throws IOException {
+		cache.setProtectedCandidates(2);
+		File first = put(1, 1);
+		File firstRoot = put(1, true, 1);
+		File second = put(2, 2);
+		File third = put(3, 3);
+		File thirdRoot = put(3, true, 3);
+		// another environment has its own most recent candidates
+		File other = put("r1.0-qlty-RC1", false, 0);
+		// the oldest zips belong to the most recent candidates
+		third.setLastModified(now - 4000);
+		thirdRoot.setLastModified(now - 4000);
+		second.setLastModified(now - 3000);
+		first.setLastModified(now - 2000);
+		firstRoot.setLastModified(now - 2000);
+		cache.setMaxSize(SIZE);
+		cache.evict();
+		assertFalse(first.exists());
+		assertFalse(firstRoot.exists());
+		assertTrue(second.exists());
+		assertTrue(third.exists());
+		assertTrue(thirdRoot.exists());
+		assertTrue(other.exists());
+		assertNull(cache.get(name(1), false));
+		assertNotNull(cache.get(name(3), true));
+	}
+	
+	@Test
+	public void testPinned() throws IOException {
+		File first = put(1, 1);
+		File second = put(2, 2);
+		assertTrue(cache.pin(first));
+		assertTrue(cache.pin(first));
+		cache.setMaxSize(SIZE);
+		cache.evict();
+		assertTrue(first.exists());
+		assertFalse(second.exists());
+		cache.setMaxSize(SIZE / 2);
+		cache.release(first);
+		cache.evict();
+		assertTrue(first.exists());
+		cache.release(first);
+		cache.evict();
+		assertFalse(first.exists());
+		// an evicted zip can not be pinned
+		assertFalse(cache.pin(first));
+	}
+	
+	// a zip of a fixed size, the higher the access the more recently it was used
+	private File put(int candidate, int access) throws IOException {
+		return put(candidate, false, access);
+	}
+	
+	private File put(int candidate, boolean includeRoot, int access) throws IOException {
+		return put(name(candidate), includeRoot, access);
+	}
+	
+	private File put(String name, boolean includeRoot, int access) throws IOException {
+		File file = cache.put(name, includeRoot, new GitArtifactCache.ZipWriter() {
+			@Override
+			public GitArtifactManifest write(OutputStream output) throws IOException {
+				output.write(new byte[SIZE]);
+				return null;
+			}
+		});
+		file.setLastModified(now - 100000 + access * 1000);
+		return file;
+	}
+	
+	private static String name(int candidate) {
+		return "r1.0-dev-RC" + candidate;
+	}
+}
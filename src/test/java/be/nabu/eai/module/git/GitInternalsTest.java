@@ -0,0 +1,119 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GitInternalsTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testRepackLinkedWorkspace() throws Exception {
+		// a store with a packed commit
+		File storeFolder = folder.newFolder("store");
+		RevCommit shared;
+		try (Git store = Git.init().setDirectory(storeFolder).call()) {
+			shared = commit(store, "shared.txt", "shared");
+			store.gc().call();
+		}
+		// a workspace that borrows from it and has commits of its own on top
+		File workspaceFolder = folder.newFolder("workspace");
+		try (Git workspace = Git.init().setDirectory(workspaceFolder).call()) {
+			Repository repository = workspace.getRepository();
+			File objects = new File(repository.getDirectory(), Constants.OBJECTS);
+			Files.write(new File(objects, "info/alternates").toPath(), (new File(storeFolder, ".git/objects").getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+			RefUpdate update = repository.updateRef(Constants.R_HEADS + "master");
+			update.setNewObjectId(shared);
+			update.forceUpdate();
+			workspace.reset().setMode(ResetType.HARD).call();
+			commit(workspace, "first.txt", "first");
+			RevCommit last = commit(workspace, "second.txt", "second");
+			// a recent unreachable object could still be in use by a running operation
+			ObjectId unreachable;
+			try (ObjectInserter inserter = repository.newObjectInserter()) {
+				unreachable = inserter.insert(Constants.OBJ_BLOB, "unreachable".getBytes(StandardCharsets.UTF_8));
+				inserter.flush();
+			}
+			
+			GitInternals.packRefs(repository);
+			GitInternals.repackLocal(repository, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+			
+			// the refs are packed and still resolve
+			assertFalse(new File(repository.getDirectory(), "refs/heads/master").exists());
+			assertTrue(new File(repository.getDirectory(), Constants.PACKED_REFS).exists());
+			assertEquals(last, repository.resolve(Constants.R_HEADS + "master"));
+			
+			// a single local pack with only the objects of the workspace
+			File[] indexes = new File(objects, "pack").listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".idx");
+				}
+			});
+			assertNotNull(indexes);
+			assertEquals(1, indexes.length);
+			PackIndex index = PackIndex.open(indexes[0]);
+			assertTrue(index.hasObject(last));
+			assertFalse(index.hasObject(shared));
+			assertFalse(index.hasObject(shared.getTree()));
+			
+			// the packed loose objects are gone, the recent unreachable one stays
+			assertFalse(new File(objects, last.name().substring(0, 2) + "/" + last.name().substring(2)).exists());
+			assertTrue(new File(objects, unreachable.name().substring(0, 2) + "/" + unreachable.name().substring(2)).exists());
+			
+			// everything is still reachable through the local pack and the store
+			try (ObjectWalk walk = new ObjectWalk(repository)) {
+				walk.markStart(walk.parseCommit(last));
+				walk.checkConnectivity();
+			}
+		}
+	}
+	
+	private static RevCommit commit(Git git, String name, String content) throws Exception {
+		Files.write(new File(git.getRepository().getWorkTree(), name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+		git.add().addFilepattern(name).call();
+		return git.commit().setMessage(name).call();
+	}
+}
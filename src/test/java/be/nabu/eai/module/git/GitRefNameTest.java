@@ -0,0 +1,153 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class GitRefNameTest {
+	
+	@Test
+	public void testRelease() {
+		GitRefName name = GitRefName.parse("refs/heads/r41");
+		assertEquals(GitRefName.Type.RELEASE, name.getType());
+		assertEquals(41, name.getRelease());
+		assertEquals(-1, name.getPatch());
+		assertNull(name.getEnvironment());
+		assertEquals(-1, name.getCandidate());
+	}
+	
+	@Test
+	public void testPatch() {
+		GitRefName name = GitRefName.parse("refs/remotes/build/r41.2");
+		assertEquals(GitRefName.Type.PATCH, name.getType());
+		assertEquals(41, name.getRelease());
+		assertEquals(2, name.getPatch());
+		assertNull(name.getEnvironment());
+	}
+	
+	@Test
+	public void testEnvironment() {
+		GitRefName name = GitRefName.parse("refs/heads/r41.2-prd");
+		assertEquals(GitRefName.Type.ENVIRONMENT, name.getType());
+		assertEquals("prd", name.getEnvironment());
+		assertEquals(-1, name.getCandidate());
+		// everything after the first dash belongs to the environment
+		assertEquals("prd-eu-west", GitRefName.parse("r41.2-prd-eu-west").getEnvironment());
+		// an RC without a number is part of the name
+		assertEquals("prd-RC", GitRefName.parse("r41.2-prd-RC").getEnvironment());
+	}
+	
+	@Test
+	public void testFinal() {
+		GitRefName name = GitRefName.parse("refs/heads/r41.2-prd-FINAL");
+		assertEquals(GitRefName.Type.ENVIRONMENT, name.getType());
+		assertEquals("prd", name.getEnvironment());
+		// only an exact suffix counts
+		assertEquals("prd-FINALE", GitRefName.parse("r41.2-prd-FINALE").getEnvironment());
+	}
+	
+	@Test
+	public void testCandidate() {
+		GitRefName name = GitRefName.parse("refs/tags/r41.2-prd-RC3");
+		assertEquals(GitRefName.Type.CANDIDATE, name.getType());
+		assertEquals(41, name.getRelease());
+		assertEquals(2, name.getPatch());
+		assertEquals("prd", name.getEnvironment());
+		assertEquals(3, name.getCandidate());
+		assertEquals("r41.2-prd-RC3", name.toString());
+	}
+	
+	@Test
+	public void testOverflow() {
+		// nine digits still fit in an int, ten do not
+		assertEquals(999999999, GitRefName.parse("r999999999").getRelease());
+		assertNull(GitRefName.parse("r9999999999"));
+		assertNull(GitRefName.parse("r1.9999999999"));
+		// an overflowing candidate number is not a candidate
+		GitRefName name = GitRefName.parse("r1.0-prd-RC9999999999");
+		assertEquals(GitRefName.Type.ENVIRONMENT, name.getType());
+		assertEquals("prd-RC9999999999", name.getEnvironment());
+	}
+	
+	@Test
+	public void testRejected() {
+		assertNull(GitRefName.parse(null));
+		assertNull(GitRefName.parse(""));
+		assertNull(GitRefName.parse("refs/heads/master"));
+		assertNull(GitRefName.parse("refs/heads/"));
+		assertNull(GitRefName.parse("r"));
+		assertNull(GitRefName.parse("ra"));
+		assertNull(GitRefName.parse("r1a"));
+		assertNull(GitRefName.parse("r1."));
+		assertNull(GitRefName.parse("r1.a"));
+		assertNull(GitRefName.parse("r1.0x"));
+		assertNull(GitRefName.parse("r1.0-"));
+		assertNull(GitRefName.parse("r1.0--RC2"));
+		assertNull(GitRefName.parse("R1.0-prd"));
+	}
+	
+	// the parser replaced a set of regular expressions, for regular names they should agree
+	@Test
+	public void testEquivalentToRegex() {
+		String [] environments = new String [] { "dev", "qlty", "accp", "prd", "prd-eu" };
+		for (int release = 0; release < 12; release++) {
+			assertRegex("refs/heads/r" + release);
+			for (int patch = 0; patch < 12; patch++) {
+				assertRegex("refs/heads/r" + release + "." + patch);
+				for (String environment : environments) {
+					assertRegex("refs/heads/r" + release + "." + patch + "-" + environment);
+					assertRegex("refs/heads/r" + release + "." + patch + "-" + environment + "-FINAL");
+					for (int rc = 0; rc < 12; rc++) {
+						assertRegex("refs/tags/r" + release + "." + patch + "-" + environment + "-RC" + rc);
+					}
+				}
+			}
+		}
+	}
+	
+	private static void assertRegex(String reference) {
+		String name = reference.replaceAll("^.*/", "");
+		GitRefName parsed = GitRefName.parse(reference);
+		assertNotNull(reference, parsed);
+		if (name.matches("^r[0-9]+$")) {
+			assertEquals(reference, GitRefName.Type.RELEASE, parsed.getType());
+			assertEquals(reference, Integer.parseInt(name.substring(1)), parsed.getRelease());
+		}
+		else if (name.matches("^r[0-9]+\\.[0-9]+$")) {
+			assertEquals(reference, GitRefName.Type.PATCH, parsed.getType());
+			assertEquals(reference, Integer.parseInt(name.split("\\.")[1]), parsed.getPatch());
+		}
+		else {
+			String environment = name.replaceAll("^(.*?)-(RC[0-9]+|FINAL)$", "$1");
+			assertEquals(reference, environment.substring(environment.indexOf('-') + 1), parsed.getEnvironment());
+			assertEquals(reference, Integer.parseInt(name.replaceAll("^r[0-9]+\\.([0-9]+)-.*$", "$1")), parsed.getPatch());
+			if (name.matches("^r[0-9]+\\.[0-9]+-.+-RC[0-9]+$")) {
+				assertEquals(reference, GitRefName.Type.CANDIDATE, parsed.getType());
+				assertEquals(reference, Integer.parseInt(name.replaceAll(".*-RC([0-9]+)$", "$1")), parsed.getCandidate());
+			}
+			else {
+				assertEquals(reference, GitRefName.Type.ENVIRONMENT, parsed.getType());
+			}
+		}
+	}
+}
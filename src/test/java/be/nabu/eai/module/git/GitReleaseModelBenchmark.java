@@ -0,0 +1,176 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Compares building the release model through GitRefName and the hashed indexes of GitReleaseModel with the regex based parsing and linear lookups it replaced.
+ * This is not a unit test, run it by hand: the first argument is the amount of releases (default 250, about 13000 refs), the second the amount of runs (default 10).
+ */
+public class GitReleaseModelBenchmark {
+	
+	private static final String [] ENVIRONMENTS = new String [] { "dev", "qlty", "accp", "prd" };
+	
+	public static void main(String...args) {
+		int releases = args.length > 0 ? Integer.parseInt(args[0]) : 250;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		List<String> branches = new ArrayList<String>();
+		List<String> tags = new ArrayList<String>();
+		for (int release = 1; release <= releases; release++) {
+			branches.add("refs/heads/r" + release);
+			for (int patch = 0; patch < 3; patch++) {
+				branches.add("refs/heads/r" + release + "." + patch);
+				for (String environment : ENVIRONMENTS) {
+					branches.add("refs/heads/r" + release + "." + patch + "-" + environment);
+					for (int rc = 1; rc <= 3; rc++) {
+						tags.add("refs/tags/r" + release + "." + patch + "-" + environment + "-RC" + rc);
+					}
+				}
+			}
+		}
+		System.out.println("Refs: " + (branches.size() + tags.size()));
+		for (int run = 0; run < runs; run++) {
+			// only parsing the names
+			long started = System.nanoTime();
+			int parsed = 0;
+			for (String branch : branches) {
+				parsed += GitRefName.parse(branch) == null ? 0 : 1;
+			}
+			for (String tag : tags) {
+				parsed += GitRefName.parse(tag) == null ? 0 : 1;
+			}
+			long parser = System.nanoTime() - started;
+			
+			started = System.nanoTime();
+			int matched = 0;
+			for (String branch : branches) {
+				matched += regexType(branch) == null ? 0 : 1;
+			}
+			for (String tag : tags) {
+				matched += regexType(tag) == null ? 0 : 1;
+			}
+			long regexParser = System.nanoTime() - started;
+			
+			// building the complete model
+			started = System.nanoTime();
+			GitReleaseModel model = new GitReleaseModel();
+			for (String branch : branches) {
+				model.addBranch(branch);
+			}
+			for (String tag : tags) {
+				model.addTag(tag);
+			}
+			long hashed = System.nanoTime() - started;
+			
+			started = System.nanoTime();
+			TreeSet<GitRelease> legacy = regexModel(branches, tags);
+			long regex = System.nanoTime() - started;
+			
+			System.out.println("Run " + run + ": parse " + (parser / 1000) + "us vs regex " + (regexParser / 1000) + "us (" + parsed + "/" + matched + " refs), "
+				+ "model " + (hashed / 1000000) + "ms vs regex " + (regex / 1000000) + "ms (" + model.getVersions().size() + "/" + legacy.size() + " releases)");
+		}
+	}
+	
+	// the classification as it was done before GitRefName
+	private static GitRefName.Type regexType(String reference) {
+		String name = reference.replaceAll("^.*/", "");
+		if (name.matches("^r[0-9]+$")) {
+			return GitRefName.Type.RELEASE;
+		}
+		else if (name.matches("^r[0-9]+\\.[0-9]+$")) {
+			return GitRefName.Type.PATCH;
+		}
+		else if (name.matches("^r[0-9]+\\.[0-9]+-.+-RC[0-9]+$")) {
+			return GitRefName.Type.CANDIDATE;
+		}
+		else if (name.matches("^r[0-9]+\\.[0-9]+-.+$")) {
+			return GitRefName.Type.ENVIRONMENT;
+		}
+		return null;
+	}
+	
+	// the model as it was built before GitReleaseModel
+	private static TreeSet<GitRelease> regexModel(List<String> branches, List<String> tags) {
+		TreeSet<GitRelease> versions = GitReleaseModel.newVersions();
+		for (String branch : branches) {
+			String name = branch.replaceAll("^.*/", "");
+			if (name.matches("^r[0-9]+$")) {
+				getVersion(versions, name).setReference(branch);
+			}
+			else if (name.matches("^r[0-9]+\\.[0-9]+$")) {
+				getPatch(versions, name).setReference(branch);
+			}
+			else if (name.matches("^r[0-9]+\\.[0-9]+-.+$")) {
+				getEnvironment(versions, name).setReference(branch);
+			}
+		}
+		for (String tag : tags) {
+			String name = tag.replaceAll("^.*/", "");
+			if (name.matches("^r[0-9]+\\.[0-9]+-.+-RC[0-9]+$")) {
+				String rc = tag.replaceAll(".*-RC([0-9]+)$", "$1");
+				getEnvironment(versions, name).getReleaseCandidates().add(new GitReleaseCandidate(tag, Integer.parseInt(rc)));
+			}
+		}
+		return versions;
+	}
+	
+	private static GitRelease getVersion(Collection<GitRelease> versions, String name) {
+		int version = Integer.parseInt(name.replaceAll("^(r[0-9]+).*", "$1").substring(1));
+		for (GitRelease possible : versions) {
+			if (possible.getVersion() == version) {
+				return possible;
+			}
+		}
+		GitRelease release = new GitRelease(version);
+		versions.add(release);
+		return release;
+	}
+	
+	private static GitPatch getPatch(Collection<GitRelease> versions, String name) {
+		name = name.replaceAll("^(r[0-9]+\\.[0-9]+).*", "$1");
+		GitRelease release = getVersion(versions, name);
+		int patch = Integer.parseInt(name.split("\\.")[1]);
+		for (GitPatch possible : release.getPatchVersions()) {
+			if (possible.getPatch() == patch) {
+				return possible;
+			}
+		}
+		GitPatch result = new GitPatch(release, patch);
+		release.getPatchVersions().add(result);
+		return result;
+	}
+	
+	private static GitEnvironment getEnvironment(Collection<GitRelease> versions, String name) {
+		name = name.replaceAll("^(.*?)-(RC[0-9]+|FINAL)$", "$1");
+		GitPatch patch = getPatch(versions, name);
+		String environment = name.substring(name.indexOf('-') + 1);
+		for (GitEnvironment potential : patch.getEnvironments()) {
+			if (potential.getName().equals(environment)) {
+				return potential;
+			}
+		}
+		GitEnvironment result = new GitEnvironment(patch, environment);
+		patch.getEnvironments().add(result);
+		return result;
+	}
+}
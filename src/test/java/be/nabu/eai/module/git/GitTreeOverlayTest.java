@@ -0,0 +1,226 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GitTreeOverlayTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private InMemoryRepository repository;
+	private ObjectReader reader;
+	private RevTree tree;
+	
+	@Before
+	public void setUp() throws IOException {
+		repository = new InMemoryRepository(new DfsRepositoryDescription("overlay"));
+		reader = repository.newObjectReader();
+		DirCache dirCache = DirCache.newInCore();
+		DirCacheBuilder builder = dirCache.builder();
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			add(builder, inserter, "build.xml", "<build/>", FileMode.REGULAR_FILE);
+			add(builder, inserter, "nabu/a/node.xml", "a", FileMode.REGULAR_FILE);
+			add(builder, inserter, "nabu/a/run.sh", "echo a", FileMode.EXECUTABLE_FILE);
+			add(builder, inserter, "nabu/b/node.xml", "b", FileMode.REGULAR_FILE);
+			add(builder, inserter, "nabu/b/c/node.xml", "c", FileMode.REGULAR_FILE);
+			builder.finish();
+			ObjectId treeId = dirCache.writeTree(inserter);
+			inserter.flush();
+			try (RevWalk walk = new RevWalk(reader)) {
+				tree = walk.parseTree(treeId);
+			}
+		}
+	}
+	
+	@After
+	public void tearDown() {
+		reader.close();
+		repository.close();
+	}
+	
+	@Test
+	public void testRead() {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		assertEquals("a", string(overlay.read("nabu/a/node.xml")));
+		// directories and missing files are not readable
+		assertNull(overlay.read("nabu/a"));
+		assertNull(overlay.read("nabu/d/node.xml"));
+		assertFalse(overlay.isChanged());
+		
+		overlay.write("nabu/a/node.xml", bytes("a2"));
+		overlay.delete("nabu/b/node.xml");
+		assertTrue(overlay.isChanged());
+		assertEquals("a2", string(overlay.read("nabu/a/node.xml")));
+		assertNull(overlay.read("nabu/b/node.xml"));
+	}
+	
+	@Test
+	public void testDirectories() {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		assertEquals(Arrays.asList("nabu"), overlay.getDirectories(""));
+		assertEquals(Arrays.asList("a", "b"), overlay.getDirectories("nabu"));
+		assertEquals(Arrays.asList("c"), overlay.getDirectories("nabu/b"));
+		assertTrue(overlay.getDirectories("nabu/a").isEmpty());
+	}
+	
+	@Test
+	public void testFiles() {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		overlay.write("nabu/b/new.xml", bytes("new"));
+		overlay.write("nabu/b/node.xml", bytes("b2"));
+		overlay.delete("nabu/b/c/node.xml");
+		Map<String, byte[]> files = overlay.getFiles("nabu/b");
+		assertEquals(2, files.size());
+		assertEquals("b2", string(files.get("node.xml")));
+		assertEquals("new", string(files.get("new.xml")));
+		// a sibling with the same prefix is not part of the directory
+		overlay.write("nabu/bb/node.xml", bytes("bb"));
+		assertEquals(2, overlay.getFiles("nabu/b").size());
+	}
+	
+	@Test
+	public void testWriteTree() throws IOException {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		overlay.write("nabu/a/run.sh", bytes("echo a2"));
+		overlay.write("nabu/d/node.xml", bytes("d"));
+		overlay.delete("nabu/b/c/node.xml");
+		ObjectId written;
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			written = overlay.writeTree(inserter);
+			inserter.flush();
+		}
+		RevTree result;
+		try (RevWalk walk = new RevWalk(reader)) {
+			result = walk.parseTree(written);
+		}
+		GitTreeOverlay reread = new GitTreeOverlay(reader, result);
+		assertEquals("echo a2", string(reread.read("nabu/a/run.sh")));
+		assertEquals("d", string(reread.read("nabu/d/node.xml")));
+		assertEquals("<build/>", string(reread.read("build.xml")));
+		assertNull(reread.read("nabu/b/c/node.xml"));
+		// the empty directory is gone, the mode of existing files is kept
+		assertEquals(Arrays.asList("a", "b", "d"), reread.getDirectories("nabu"));
+		try (TreeWalk treeWalk = TreeWalk.forPath(reader, "nabu/a/run.sh", result)) {
+			assertEquals(FileMode.EXECUTABLE_FILE, treeWalk.getFileMode(0));
+		}
+		try (TreeWalk treeWalk = TreeWalk.forPath(reader, "nabu/d/node.xml", result)) {
+			assertEquals(FileMode.REGULAR_FILE, treeWalk.getFileMode(0));
+		}
+	}
+	
+	@Test
+	public void testUnchangedTree() throws IOException {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		try (ObjectInserter inserter = repository.newObjectInserter()) {
+			assertEquals(tree.getId(), overlay.writeTree(inserter));
+		}
+	}
+	
+	@Test
+	public void testMaterializeAndCollect() throws IOException {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		File target = folder.newFolder("b");
+		Map<String, byte[]> materialized = overlay.materialize("nabu/b", target);
+		assertEquals("c", new String(Files.readAllBytes(new File(target, "c/node.xml").toPath()), StandardCharsets.UTF_8));
+		
+		// written directly to the overlay and left alone on the file system
+		overlay.write("nabu/b/direct.xml", bytes("direct"));
+		Files.write(new File(target, "node.xml").toPath(), bytes("b2"));
+		Files.write(new File(target, "c/extra.xml").toPath(), bytes("extra"));
+		assertTrue(new File(target, "c/node.xml").delete());
+		overlay.collect("nabu/b", target, materialized);
+		
+		assertEquals("b2", string(overlay.read("nabu/b/node.xml")));
+		assertEquals("extra", string(overlay.read("nabu/b/c/extra.xml")));
+		assertEquals("direct", string(overlay.read("nabu/b/direct.xml")));
+		assertNull(overlay.read("nabu/b/c/node.xml"));
+		// outside of the directory nothing changes
+		assertEquals("a", string(overlay.read("nabu/a/node.xml")));
+	}
+	
+	@Test
+	public void testCollectIgnored() throws IOException {
+		GitTreeOverlay overlay = new GitTreeOverlay(reader, tree);
+		overlay.write(".gitignore", bytes("*.class\n"));
+		overlay.write("nabu/b/.gitignore", bytes("target/\n"));
+		overlay.write("nabu/b/tracked.class", bytes("tracked"));
+		File target = folder.newFolder("b");
+		Map<String, byte[]> materialized = overlay.materialize("nabu/b", target);
+		
+		// build output of the merge script
+		new File(target, "target").mkdirs();
+		Files.write(new File(target, "target/out.jar").toPath(), bytes("jar"));
+		Files.write(new File(target, "c/Generated.class").toPath(), bytes("class"));
+		Files.write(new File(target, "c/kept.xml").toPath(), bytes("kept"));
+		// a file that is in the tree is picked up even if it matches a rule
+		Files.write(new File(target, "tracked.class").toPath(), bytes("tracked2"));
+		overlay.collect("nabu/b", target, materialized);
+		
+		assertNull(overlay.read("nabu/b/target/out.jar"));
+		assertNull(overlay.read("nabu/b/c/Generated.class"));
+		assertEquals("kept", string(overlay.read("nabu/b/c/kept.xml")));
+		assertEquals("tracked2", string(overlay.read("nabu/b/tracked.class")));
+	}
+	
+	private static void add(DirCacheBuilder builder, ObjectInserter inserter, String path, String content, FileMode mode) throws IOException {
+		DirCacheEntry entry = new DirCacheEntry(path, DirCacheEntry.STAGE_0);
+		entry.setFileMode(mode);
+		entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, bytes(content)));
+		builder.add(entry);
+	}
+	
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static String string(byte[] content) {
+		return content == null ? null : new String(content, StandardCharsets.UTF_8);
+	}
+}
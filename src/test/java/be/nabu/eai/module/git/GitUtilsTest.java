@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GitUtilsTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testNoRange() {
+		assertRange(0, 1000, null, 1000);
+		assertRange(0, 1000, " ", 1000);
+		assertRange(0, 0, null, 0);
+	}
+	
+	@Test
+	public void testBoundedRange() {
+		assertRange(0, 100, "bytes=0-99", 1000);
+		assertRange(500, 1, "bytes=500-500", 1000);
+		// the end is inclusive and capped at the size
+		assertRange(900, 100, "bytes=900-5000", 1000);
+		assertRange(10, 20, " bytes=10-29 ", 1000);
+	}
+	
+	@Test
+	public void testOpenRange() {
+		// resuming a download
+		assertRange(1024, 976, "bytes=1024-", 2000);
+		assertRange(1999, 1, "bytes=1999-", 2000);
+	}
+	
+	@Test
+	public void testSuffixRange() {
+		assertRange(1500, 500, "bytes=-500", 2000);
+		// a suffix larger than the file is the whole file
+		assertRange(0, 2000, "bytes=-5000", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testOffsetBeyondSize() {
+		GitUtils.getRange("bytes=2000-", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEndBeforeOffset() {
+		GitUtils.getRange("bytes=500-100", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptySuffix() {
+		GitUtils.getRange("bytes=-0", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoBounds() {
+		GitUtils.getRange("bytes=-", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMultipleRanges() {
+		GitUtils.getRange("bytes=0-10,20-30", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testOtherUnit() {
+		GitUtils.getRange("items=0-10", 2000);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyFile() {
+		GitUtils.getRange("bytes=0-", 0);
+	}
+	
+	// the tip of a linked branch can be there while older history is not
+	@Test
+	public void testConnectivity() throws Exception {
+		File source = folder.newFolder("source");
+		ObjectId oldBlob;
+		RevCommit tip;
+		try (Git git = Git.init().setDirectory(source).call()) {
+			File file = new File(source, "old.txt");
+			Files.write(file.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+			git.add().addFilepattern("old.txt").call();
+			git.commit().setMessage("old").call();
+			oldBlob = git.getRepository().resolve("HEAD:old.txt");
+			git.rm().addFilepattern("old.txt").call();
+			Files.write(new File(source, "new.txt").toPath(), "new".getBytes(StandardCharsets.UTF_8));
+			git.add().addFilepattern("new.txt").call();
+			tip = git.commit().setMessage("new").call();
+		}
+		File target = folder.newFolder("target");
+		Git.init().setDirectory(target).setBare(true).call().close();
+		GitUtils.linkObjects(new File(source, ".git/objects"), new File(target, "objects"));
+		Map<String, ObjectId> refs = Collections.<String, ObjectId>singletonMap("refs/heads/master", tip);
+		assertTrue(GitUtils.isConnected(target, refs));
+		
+		// the blob only lives in the history, the tip is still complete on its own
+		String name = oldBlob.name();
+		assertTrue(new File(target, "objects/" + name.substring(0, 2) + "/" + name.substring(2)).delete());
+		assertFalse(GitUtils.isConnected(target, refs));
+	}
+	
+	private static void assertRange(long offset, long length, String range, long size) {
+		assertArrayEquals(range, new long[] { offset, length }, GitUtils.getRange(range, size));
+	}
+}
@@ -0,0 +1,276 @@
+/*
+* Copyright (C) 2021 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.git;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nabu.misc.git.types.GitArtifactEntry;
+import nabu.misc.git.types.GitArtifactManifest;
+
+public class GitZipWriterTest {
+	
+	// 2021-03-04 05:06:08, dos times have a resolution of two seconds
+	private static final long TIME = 1614834368000L;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private InMemoryRepository repository;
+	private ObjectInserter inserter;
+	private Random random = new Random(42);
+	
+	@Before
+	public void setUp() {
+		repository = new InMemoryRepository(new DfsRepositoryDescription("zip"));
+		inserter = repository.newObjectInserter();
+	}
+	
+	@After
+	public void tearDown() {
+		inserter.close();
+		repository.close();
+	}
+	
+	@Test
+	public void testRoundTrip() throws IOException {
+		Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+		contents.put("nabu/node.xml", text(10000));
+		// already compressed according to the extension
+		contents.put("nabu/image.png", text(10000));
+		// deflating does not help
+		contents.put("nabu/random.bin", random(10000));
+		contents.put("nabu/empty.txt", new byte[0]);
+		// above the threshold, streamed with a data descriptor
+		contents.put("nabu/large.txt", text(200000));
+		// above the threshold and stored, streamed with the crc up front
+		contents.put("nabu/large.jar", random(200000));
+		// not ascii, the names are flagged as utf-8
+		contents.put("nabu/apr\u00e8s.txt", text(100));
+		List<GitZipWriter.Entry> entries = toEntries(contents);
+		contents.put("build.xml", text(500));
+		entries.add(new GitZipWriter.Entry("build.xml", contents.get("build.xml")));
+		
+		GitZipWriter writer = new GitZipWriter(repository);
+		writer.setTime(TIME);
+		writer.setStreamThreshold(100000);
+		byte[] zip = write(writer, entries);
+		
+		File file = folder.newFile("test.zip");
+		Files.write(file.toPath(), zip);
+		try (ZipFile zipFile = new ZipFile(file)) {
+			assertEquals(contents.size(), zipFile.size());
+			for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+				ZipEntry entry = zipFile.getEntry(content.getKey());
+				assertNotNull(content.getKey(), entry);
+				assertEquals(TIME, entry.getTime());
+				try (InputStream input = zipFile.getInputStream(entry)) {
+					assertArrayEquals(content.getKey(), content.getValue(), read(input));
+				}
+			}
+			assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("nabu/node.xml").getMethod());
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("nabu/image.png").getMethod());
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("nabu/random.bin").getMethod());
+			assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("nabu/large.txt").getMethod());
+			assertEquals(ZipEntry.STORED, zipFile.getEntry("nabu/large.jar").getMethod());
+		}
+		// the entries are written in the order they are given, this is what a streaming reader sees
+		List<String> paths = new ArrayList<String>(contents.keySet());
+		try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip), StandardCharsets.UTF_8)) {
+			int index = 0;
+			ZipEntry entry;
+			while ((entry = input.getNextEntry()) != null) {
+				assertEquals(paths.get(index), entry.getName());
+				assertArrayEquals(entry.getName(), contents.get(entry.getName()), read(input));
+				index++;
+			}
+			assertEquals(paths.size(), index);
+		}
+	}
+	
+	@Test
+	public void testManifest() throws IOException {
+		Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+		contents.put("small.txt", text(1000));
+		contents.put("large.txt", text(5000));
+		List<GitZipWriter.Entry> entries = toEntries(contents);
+		entries.add(new GitZipWriter.Entry("generated.xml", text(100)));
+		GitZipWriter writer = new GitZipWriter(repository);
+		writer.setStreamThreshold(2000);
+		write(writer, entries);
+		GitArtifactManifest manifest = writer.getManifest();
+		assertEquals(3, manifest.getEntries().size());
+		List<String> paths = new ArrayList<String>(contents.keySet());
+		for (int i = 0; i < paths.size(); i++) {
+			GitArtifactEntry entry = manifest.getEntries().get(i);
+			byte[] content = contents.get(entry.getPath());
+			assertEquals(paths.get(i), entry.getPath());
+			assertEquals(ObjectId.fromRaw(sha1(content)).name(), entry.getBlob());
+			assertEquals(GitZipWriter.toHex(sha256(content)), entry.getHash());
+			assertEquals(content.length, entry.getSize());
+		}
+		// generated content has no blob
+		assertNull(manifest.getEntries().get(2).getBlob());
+	}
+	
+	@Test
+	public void testManyEntries() throws IOException {
+		// more than fit in the regular end of central directory record
+		int amount = 70000;
+		List<GitZipWriter.Entry> entries = new ArrayList<GitZipWriter.Entry>();
+		for (int i = 0; i < amount; i++) {
+			entries.add(new GitZipWriter.Entry("entries/" + i + ".txt", ("entry " + i).getBytes(StandardCharsets.UTF_8)));
+		}
+		GitZipWriter writer = new GitZipWriter(repository);
+		byte[] zip = write(writer, entries);
+		File file = folder.newFile("many.zip");
+		Files.write(file.toPath(), zip);
+		try (ZipFile zipFile = new ZipFile(file)) {
+			assertEquals(amount, zipFile.size());
+			ZipEntry last = zipFile.getEntry("entries/" + (amount - 1) + ".txt");
+			try (InputStream input = zipFile.getInputStream(last)) {
+				assertEquals("entry " + (amount - 1), new String(read(input), StandardCharsets.UTF_8));
+			}
+		}
+		try (ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			int count = 0;
+			while (input.getNextEntry() != null) {
+				count++;
+			}
+			assertEquals(amount, count);
+		}
+	}
+	
+	@Test
+	public void testDeterministic() throws IOException {
+		Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < 500; i++) {
+			contents.put("nabu/" + i + ".xml", text(5000));
+		}
+		contents.put("nabu/large.txt", text(300000));
+		List<GitZipWriter.Entry> entries = toEntries(contents);
+		byte[] first = write(newWriter(TIME), entries);
+		byte[] second = write(newWriter(TIME), entries);
+		assertArrayEquals(first, second);
+		assertFalse(Arrays.equals(first, write(newWriter(TIME + 60000), entries)));
+	}
+	
+	private GitZipWriter newWriter(long time) {
+		GitZipWriter writer = new GitZipWriter(repository);
+		writer.setTime(time);
+		writer.setStreamThreshold(100000);
+		return writer;
+	}
+	
+	private List<GitZipWriter.Entry> toEntries(Map<String, byte[]> contents) throws IOException {
+		List<GitZipWriter.Entry> entries = new ArrayList<GitZipWriter.Entry>();
+		for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+			ObjectId blob = inserter.insert(Constants.OBJ_BLOB, content.getValue());
+			entries.add(new GitZipWriter.Entry(content.getKey(), blob, content.getValue().length));
+		}
+		inserter.flush();
+		return entries;
+	}
+	
+	private static byte[] write(GitZipWriter writer, List<GitZipWriter.Entry> entries) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writer.write(entries, output);
+		return output.toByteArray();
+	}
+	
+	// compressible content
+	private byte[] text(int size) {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < size) {
+			builder.append("<node id=\"").append(random.nextInt(100)).append("\"/>\n");
+		}
+		return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+	
+	private static byte[] read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = input.read(buffer)) > 0) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+	
+	private static byte[] sha1(byte[] content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(Constants.encodedTypeString(Constants.OBJ_BLOB));
+			digest.update((byte) ' ');
+			digest.update(Constants.encodeASCII(content.length));
+			digest.update((byte) 0);
+			return digest.digest(content);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static byte[] sha256(byte[] content) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(content);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}